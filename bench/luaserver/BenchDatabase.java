@@ -0,0 +1,95 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package luaserver;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * An in-memory H2 database with the schema the endpoint scripts expect,
+ * filled with users whose password is their name.
+ *
+ * @author azalac
+ */
+public class BenchDatabase {
+
+    /**
+     * Creates the schema and users, then opens a pool on it.
+     *
+     * @param name the database name, each may only be opened once
+     * @param users the number of users, named user1 to userN
+     */
+    public static Database open(String name, int users) throws Exception {
+        // identifiers keep the case they are written in, so result labels are
+        // the same as mysql's, and the database outlives the pool's connections
+        String url = "jdbc:h2:mem:" + name + ";MODE=MySQL;NON_KEYWORDS=USER;DATABASE_TO_UPPER=FALSE;"
+                + "CASE_INSENSITIVE_IDENTIFIERS=TRUE;DB_CLOSE_DELAY=-1";
+
+        try (Connection connection = DriverManager.getConnection(url); Statement statement = connection.createStatement()) {
+            statement.execute("CREATE ALIAS SHA2 FOR 'luaserver.BenchDatabase.sha2'");
+
+            statement.execute("CREATE TABLE User ("
+                    + "ID INT AUTO_INCREMENT PRIMARY KEY, "
+                    + "Username VARCHAR(64) NOT NULL UNIQUE, "
+                    + "Salt VARCHAR(80) NOT NULL, "
+                    + "PasswordHash CHAR(64) NOT NULL, "
+                    + "LastLogin TIMESTAMP NULL, "
+                    + "LastAuthCode VARCHAR(80) NULL)");
+
+            try (PreparedStatement insert = connection.prepareStatement(
+                    "INSERT INTO User (Username, Salt, PasswordHash) VALUES (?, ?, ?)")) {
+
+                for (int i = 1; i <= users; i++) {
+                    String username = "user" + i, salt = "salt" + i;
+
+                    insert.setString(1, username);
+                    insert.setString(2, salt);
+                    insert.setString(3, sha2(username + salt, 256));
+                    insert.addBatch();
+                }
+
+                insert.executeBatch();
+            }
+        }
+
+        Properties properties = new Properties();
+        properties.setProperty("driver", "org.h2.Driver");
+        properties.setProperty("url", url);
+        properties.setProperty("pool.min", "1");
+        properties.setProperty("pool.max", Integer.toString(Runtime.getRuntime().availableProcessors() * 2));
+
+        CountDownLatch latch = new CountDownLatch(1);
+        Database database = new Database(properties, latch);
+        latch.await();
+
+        return database;
+    }
+
+    /**
+     * Mysql's SHA2, which H2 does not have.
+     */
+    public static String sha2(String value, int bits) throws NoSuchAlgorithmException {
+        byte[] digest = MessageDigest.getInstance("SHA-" + bits).digest(value.getBytes(StandardCharsets.UTF_8));
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return hex.toString();
+    }
+
+    private BenchDatabase() {
+    }
+
+}
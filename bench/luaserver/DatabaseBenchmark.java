@@ -0,0 +1,100 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package luaserver;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import luaserver.DatabaseWrapper.StatementWrapper;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Turning result rows into lua tables, straight from the database and from
+ * the query cache. Each call prepares, selects and gives the connection back,
+ * as a script endpoint does.
+ *
+ * @author azalac
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DatabaseBenchmark {
+
+    private static final String SELECT = "SELECT ID, Username, Salt, PasswordHash, LastLogin, LastAuthCode FROM User WHERE ID <= ?";
+
+    @Param({"1", "10", "100", "1000"})
+    public int rows;
+
+    private Database database;
+
+    private LuaTable parameters;
+
+    /**
+     * Every thread is a lua state with its own wrapper.
+     */
+    @State(Scope.Thread)
+    public static class Session {
+
+        private DatabaseWrapper wrapper;
+
+        @Setup
+        public void setup(DatabaseBenchmark benchmark) {
+            wrapper = new DatabaseWrapper(benchmark.database);
+        }
+
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        database = BenchDatabase.open("rows" + rows, 1000);
+        parameters = LuaValue.listOf(new LuaValue[]{LuaValue.valueOf(rows)});
+    }
+
+    @TearDown
+    public void teardown() throws IOException {
+        database.close();
+    }
+
+    @Benchmark
+    public LuaValue select(Session session) {
+        StatementWrapper statement = session.wrapper.prepare(SELECT);
+
+        try {
+            return statement.select(parameters);
+        } finally {
+            statement.close();
+            session.wrapper.release();
+        }
+    }
+
+    @Benchmark
+    public LuaValue selectCached(Session session) {
+        StatementWrapper statement = session.wrapper.prepare(SELECT).cache(60);
+
+        try {
+            return statement.select(parameters);
+        } finally {
+            statement.close();
+            session.wrapper.release();
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package luaserver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import luaserver.HTTPHelpers.HTTPRequest;
+import luaserver.HTTPHelpers.HTTPResponse;
+import luaserver.HTTPHelpers.HTTPStatusCode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The scripts in endpoints/ answering requests on a pool of lua states, with
+ * an in-memory database behind them. Must be run from the project directory.
+ *
+ * @author azalac
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EndpointBenchmark {
+
+    private static final byte[] CREDENTIALS = "{\"username\":\"user1\",\"password\":\"user1\"}".getBytes(StandardCharsets.UTF_8);
+
+    private Database database;
+
+    private LuaEndpoint session;
+
+    @Setup
+    public void setup() throws Exception {
+        database = BenchDatabase.open("endpoints", 1000);
+
+        Properties properties = new Properties();
+        properties.setProperty("lua.pool.size", Integer.toString(Runtime.getRuntime().availableProcessors()));
+
+        HashMap<String, LuaEndpoint> endpoints = new HashMap<>();
+
+        new LuaStatePool(database, null, Paths.get("endpoints"), properties)
+                .start(endpoint -> endpoints.put(endpoint.getResourceName(), endpoint));
+
+        session = endpoints.get("/session");
+
+        if (session == null) {
+            throw new IllegalStateException("endpoints/ has no /session endpoint, run from the project directory");
+        }
+
+        // an error response would be measured just as happily
+        String login = new String(login().getContent(), StandardCharsets.UTF_8);
+
+        if (!login.contains("\"ok\"")) {
+            throw new IllegalStateException("Could not log in: " + login);
+        }
+    }
+
+    @TearDown
+    public void teardown() throws IOException {
+        database.close();
+    }
+
+    private static HTTPRequest request(String target) {
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        headers.put("Content-Type", "application/json");
+
+        HTTPRequest request = new HTTPRequest("POST", target, "HTTP/1.1", headers, CREDENTIALS);
+        request.setJsonLimits(LuaJsonReader.DEFAULT_MAX_SIZE, LuaJsonReader.DEFAULT_MAX_DEPTH);
+
+        return request;
+    }
+
+    /**
+     * Checks the password, then writes and reads back a new auth code.
+     */
+    @Benchmark
+    public HTTPResponse login() {
+        return session.HandleRequest(request("/session?operation=login"));
+    }
+
+    /**
+     * Turned away by the cached username lookup.
+     */
+    @Benchmark
+    public HTTPResponse registerTaken() {
+        HTTPResponse response = session.HandleRequest(request("/session?operation=register"));
+
+        if (response.getStatus() != HTTPStatusCode.OK) {
+            throw new IllegalStateException("Register answered " + response.getStatus());
+        }
+
+        return response;
+    }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package luaserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import luaserver.HTTPHelpers.HTTPRequest;
+import luaserver.HTTPHelpers.HTTPResponse;
+import luaserver.HTTPHelpers.HTTPStatusCode;
+import luaserver.ServerManager.InvalidHTTPException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing requests, reading their query strings and writing responses, with
+ * what a browser sends and a script endpoint answers.
+ *
+ * @author azalac
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class HTTPBenchmark {
+
+    private static final String TARGET = "/session?operation=login&username=user1&password=user1&remember=true";
+
+    private static final byte[] GET = ("GET " + TARGET + " HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "Connection: keep-alive\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0\r\n"
+            + "Accept: application/json, text/plain, */*\r\n"
+            + "Accept-Language: en-US,en;q=0.5\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Referer: http://localhost:8080/\r\n"
+            + "Cookie: theme=dark; session=3f9c2a7b1e\r\n"
+            + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final byte[] JSON = "{\"username\":\"user1\",\"password\":\"user1\"}".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] POST = ("POST /session?operation=login HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Content-Type: application/json\r\n"
+            + "Content-Length: " + JSON.length + "\r\n"
+            + "Accept: application/json\r\n"
+            + "\r\n"
+            + new String(JSON, StandardCharsets.ISO_8859_1)).getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final byte[] RESPONSE = ("{\"type\":\"ok\",\"username\":\"user1\",\"authcode\":"
+            + "\"Vq3XnB8kTzR1mWc6LhJ0sYdP4eFaGu7NoKb2Ii9CjDZtEwQlrS5xMgHy0pUvAfOT\"}").getBytes(StandardCharsets.UTF_8);
+
+    private final HTTPParser parser = new HTTPParser();
+
+    private final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    private final Sink sink = new Sink();
+
+    /**
+     * Throws the bytes away.
+     */
+    private static class Sink implements GatheringByteChannel {
+
+        private long written;
+
+        @Override
+        public int write(ByteBuffer source) {
+            int length = source.remaining();
+            source.position(source.limit());
+            written += length;
+            return length;
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources, int offset, int length) {
+            long total = 0;
+
+            for (int i = offset; i < offset + length; i++) {
+                total += write(sources[i]);
+            }
+
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources) {
+            return write(sources, 0, sources.length);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    @Benchmark
+    public HTTPRequest parseGet() throws InvalidHTTPException {
+        return parser.parse(ByteBuffer.wrap(GET));
+    }
+
+    @Benchmark
+    public HTTPRequest parsePost() throws InvalidHTTPException {
+        return parser.parse(ByteBuffer.wrap(POST));
+    }
+
+    /**
+     * The query is split the first time it is asked for, so every call needs
+     * a new request.
+     */
+    @Benchmark
+    public Map<String, String> queryData() {
+        return new HTTPRequest("GET", TARGET, "HTTP/1.1", headers, new byte[0]).getQueryData();
+    }
+
+    @Benchmark
+    public long writeResponse() throws IOException {
+        HTTPResponse response = new HTTPResponse(HTTPStatusCode.OK, RESPONSE);
+        response.setHeader("Content-Type", "application/json");
+        response.setHeader("Connection", "keep-alive");
+        response.setHeader("Keep-Alive", "timeout=5, max=99");
+
+        response.write(sink);
+
+        return sink.written;
+    }
+
+}
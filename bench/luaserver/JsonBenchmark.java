@@ -0,0 +1,77 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package luaserver;
+
+import java.util.concurrent.TimeUnit;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing script results as JSON and reading JSON content into lua, for a
+ * response listing some users.
+ *
+ * @author azalac
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonBenchmark {
+
+    @Param({"1", "100"})
+    public int users;
+
+    private LuaTable response;
+
+    private byte[] json;
+
+    @Setup
+    public void setup() {
+        LuaTable list = new LuaTable();
+
+        for (int i = 1; i <= users; i++) {
+            LuaTable user = new LuaTable();
+            user.set("id", i);
+            user.set("username", "user" + i);
+            user.set("authcode", "Vq3XnB8kTzR1mWc6LhJ0sYdP4eFaGu7NoKb2Ii9CjDZtEwQlrS5xMgHy0pUvAfOT");
+            user.set("last_login", LuaValue.valueOf(1.7e9 + i * 0.25));
+            user.set("active", LuaValue.valueOf(i % 2 == 0));
+            user.set("roles", LuaValue.listOf(new LuaValue[]{LuaValue.valueOf("user"), LuaValue.valueOf("editor")}));
+            list.set(i, user);
+        }
+
+        response = new LuaTable();
+        response.set("type", "ok");
+        response.set("count", users);
+        response.set("users", list);
+
+        json = LuaEndpoint.LuaToJson(response);
+    }
+
+    @Benchmark
+    public byte[] write() {
+        return LuaEndpoint.LuaToJson(response);
+    }
+
+    @Benchmark
+    public LuaValue read() {
+        return LuaJsonReader.read(json, LuaJsonReader.DEFAULT_MAX_DEPTH);
+    }
+
+}
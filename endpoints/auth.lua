@@ -1,6 +1,18 @@
 
+-- credentials are read from a JSON body, or the query string for older clients
+function credentials(request)
+	local body = request:getJson()
+	
+	if type(body) == "table" then
+		return body.username, body.password
+	end
+	
+	return request:getQueryValue("username"), request:getQueryValue("password")
+end
+
 function onlogin(self, request)
-	local user = modules.user.from_password(request:getQueryValue("username"), request:getQueryValue("password"))
+	local username, password = credentials(request)
+	local user = modules.user.from_password(username, password)
 	
 	if user == nil then
 		return {
@@ -23,7 +35,9 @@ function onlogin(self, request)
 end
 
 function onregister(self, request)
-	if not modules.user.username_available(request:getQueryValue("username")) then
+	local username, password = credentials(request)
+	
+	if not modules.user.username_available(username) then
 		return {
 			status=200,
 			content={
@@ -33,7 +47,7 @@ function onregister(self, request)
 		}
 	end
 	
-	local user = modules.user.create(request:getQueryValue("username"), request:getQueryValue("password"))
+	local user = modules.user.create(username, password)
 	
 	return {
 		status=200,
@@ -58,7 +58,8 @@ modules.user.generate_salt = function()
 end
 
 modules.user.username_available = function(username)
-	local stmt = database:prepare("SELECT 1 FROM User WHERE Username = ?")
+	-- Cached, registering a user writes to User and drops the cached result
+	local stmt = database:prepare("SELECT 1 FROM User WHERE Username = ?"):cache(30)
 	
 	local ret = stmt:select({username})
 	
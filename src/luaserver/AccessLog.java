@@ -0,0 +1,301 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package luaserver;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import luaserver.HTTPHelpers.HTTPRequest;
+import luaserver.HTTPHelpers.HTTPResponse;
+
+/**
+ * Writes one line per request in the common log format, followed by the
+ * seconds the server took to produce the response.
+ * <p>
+ * Request threads only copy a few references into a slot of a fixed ring of
+ * records, they never wait on the file or on each other. When the ring is
+ * full the record is dropped and counted. A single background thread formats
+ * the records and writes them, flushing whenever it has caught up.
+ *
+ * @author azalac
+ */
+public class AccessLog implements Runnable, AutoCloseable {
+
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    // how long the writer sleeps when it has caught up, request threads never wake it
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final DateTimeFormatter TIME_FORMAT
+            = DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+
+    /**
+     * A slot in the ring, reused for every record which passes through it.
+     */
+    private static class Record {
+
+        private long time;
+        private SocketAddress remote;
+        private String method, resource, version;
+        private int status;
+        private String length;
+        private long nanos;
+
+    }
+
+    private final Record[] records;
+
+    // a slot may be written when its sequence equals the producer's position,
+    // and read when it is one past the consumer's
+    private final AtomicLongArray sequences;
+
+    private final int mask;
+
+    private final AtomicLong tail = new AtomicLong();
+
+    // only touched by the writer thread
+    private long head;
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final Writer out;
+
+    private final Thread writer;
+
+    private volatile boolean closed;
+
+    /**
+     * @param out where lines are written, only ever used by the writer thread
+     * @param capacity the records which may wait to be written, rounded up to
+     * a power of two
+     */
+    public AccessLog(Writer out, int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+
+        this.out = out;
+
+        records = new Record[size];
+        sequences = new AtomicLongArray(size);
+        mask = size - 1;
+
+        for (int i = 0; i < size; i++) {
+            records[i] = new Record();
+            sequences.set(i, i);
+        }
+
+        writer = new Thread(this, "Access Log Writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Appends to the file at the given path, creating it if needed.
+     */
+    public static AccessLog open(Path path, int capacity) throws IOException {
+        return new AccessLog(Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE), capacity);
+    }
+
+    /**
+     * Queues a record for a handled request. Never blocks.
+     *
+     * @param remote the client's address, may be null
+     * @param nanos how long the server took to produce the response
+     */
+    public void log(SocketAddress remote, HTTPRequest request, HTTPResponse response, long nanos) {
+        long position = tail.get();
+        int index;
+
+        while (true) {
+            index = (int) position & mask;
+
+            long difference = sequences.get(index) - position;
+
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+
+                position = tail.get();
+            } else if (difference < 0) {
+                // the writer has not yet read the record a whole ring ago
+                dropped.increment();
+                return;
+            } else {
+                // another thread took this slot
+                position = tail.get();
+            }
+        }
+
+        Record record = records[index];
+
+        record.time = System.currentTimeMillis();
+        record.remote = remote;
+        record.method = request.getMethod();
+        record.resource = request.getRequest();
+        record.version = request.getVersion();
+        record.status = response.getStatus().getCode();
+        record.length = response.getHeader("Content-Length");
+        record.nanos = nanos;
+
+        sequences.set(index, position + 1);
+    }
+
+    /**
+     * @return records dropped because the ring was full
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    @Override
+    public void run() {
+        StringBuilder line = new StringBuilder(256);
+
+        // most records share their second with the previous one
+        long formatted_second = Long.MIN_VALUE;
+        String formatted_time = null;
+
+        boolean unflushed = false;
+
+        while (true) {
+            int index = (int) head & mask;
+
+            if (sequences.get(index) != head + 1) {
+                if (unflushed) {
+                    try {
+                        out.flush();
+                    } catch (IOException ex) {
+                        Logger.getLogger(AccessLog.class.getName()).log(Level.WARNING, "Could not write access log", ex);
+                    }
+
+                    unflushed = false;
+                }
+
+                if (closed) {
+                    break;
+                }
+
+                LockSupport.parkNanos(this, IDLE_NANOS);
+                continue;
+            }
+
+            Record record = records[index];
+
+            long second = Math.floorDiv(record.time, 1000);
+
+            if (second != formatted_second) {
+                formatted_second = second;
+                formatted_time = TIME_FORMAT.format(Instant.ofEpochSecond(second));
+            }
+
+            line.setLength(0);
+            appendAddress(line, record.remote);
+            line.append(" - - [").append(formatted_time).append("] \"");
+            appendEscaped(line, record.method);
+            line.append(' ');
+            appendEscaped(line, record.resource);
+            line.append(' ');
+            appendEscaped(line, record.version);
+            line.append("\" ").append(record.status).append(' ');
+            line.append(record.length == null ? "-" : record.length).append(' ');
+            appendSeconds(line, record.nanos);
+            line.append('\n');
+
+            // the slot may be reused as soon as its sequence moves on, so references are dropped first
+            record.remote = null;
+            record.method = record.resource = record.version = record.length = null;
+
+            sequences.set(index, head + records.length);
+            head++;
+
+            try {
+                out.append(line);
+                unflushed = true;
+            } catch (IOException ex) {
+                Logger.getLogger(AccessLog.class.getName()).log(Level.WARNING, "Could not write access log", ex);
+            }
+        }
+    }
+
+    private static void appendAddress(StringBuilder line, SocketAddress remote) {
+        if (remote instanceof InetSocketAddress && ((InetSocketAddress) remote).getAddress() != null) {
+            line.append(((InetSocketAddress) remote).getAddress().getHostAddress());
+        } else {
+            line.append(remote == null ? "-" : remote.toString());
+        }
+    }
+
+    /**
+     * Escapes quotes, backslashes and control characters, so a crafted
+     * request can not forge a line.
+     */
+    private static void appendEscaped(StringBuilder line, String value) {
+        if (value == null) {
+            line.append('-');
+            return;
+        }
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c < 0x20 || c == 0x7F) {
+                line.append("\\x").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+            } else {
+                line.append(c);
+            }
+        }
+    }
+
+    private static void appendSeconds(StringBuilder line, long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+        String fraction = Long.toString(micros % 1_000_000);
+
+        line.append(micros / 1_000_000).append('.');
+
+        for (int i = fraction.length(); i < 6; i++) {
+            line.append('0');
+        }
+
+        line.append(fraction);
+    }
+
+    /**
+     * Writes the records already queued and closes the output.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(writer);
+
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        out.close();
+    }
+
+}
@@ -11,64 +11,602 @@ import java.security.Provider;
 import java.security.Security;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
+ * A pool of connections to the database. A request borrows one connection
+ * for as long as it needs the database and gives it back when it finishes.
+ * <p>
+ * Configured in connection.properties: the pool keeps at least
+ * {@code pool.min} and at most {@code pool.max} connections, waits up to
+ * {@code pool.timeout} milliseconds for a connection to be returned,
+ * validates connections for up to {@code pool.validation_timeout} seconds
+ * when they are borrowed, and closes connections which were idle for
+ * {@code pool.idle_timeout} seconds while there are more than the minimum.
+ * Broken connections are dropped and replaced, so the pool reconnects on its
+ * own when the database comes back. Each connection caches up to
+ * {@code pool.statements} prepared statements.
+ * <p>
+ * {@code fetch_size} is the number of rows the driver is asked to fetch at
+ * once (0 leaves it to the driver), and {@code options} is appended to the
+ * connection URL as extra driver parameters. {@code url}, when set, is used as
+ * the whole connection URL instead. Query results are cached in a
+ * {@link QueryCache} of {@code cache.size} bytes.
  *
  * @author azalac
  */
 public class Database implements Closeable, AutoCloseable {
 
-    private Connection connection;
+    private static final long RECONNECT_DELAY = 5;
+
+    private static final long EVICTION_PERIOD = 30;
+
+    private final String url;
+
+    private final int min, max;
+    private final long timeout;
+    private final int validation_timeout;
+    private final long idle_timeout;
+    private final int statement_limit;
+    private final int fetch_size;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition returned = lock.newCondition();
+
+    // most recently returned first, so rarely needed connections age out
+    private final ArrayDeque<PooledConnection> idle = new ArrayDeque<>();
+
+    // connections open or being opened, guarded by lock
+    private int total;
+
+    private final ScheduledExecutorService evictor;
+
+    private final QueryCache cache;
+
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong wait_nanos = new AtomicLong();
+    private final AtomicLong max_wait_nanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final AtomicLong statement_hits = new AtomicLong();
+    private final AtomicLong statement_misses = new AtomicLong();
+
+    /**
+     * What a prepared statement is cached by. Statements which return
+     * generated keys are prepared differently, so they are cached apart from
+     * the same SQL without them.
+     */
+    private static final class StatementKey {
+
+        private final String sql;
+        private final boolean keys;
+
+        private StatementKey(String sql, boolean keys) {
+            this.sql = sql;
+            this.keys = keys;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof StatementKey)) {
+                return false;
+            }
+
+            StatementKey key = (StatementKey) other;
+            return keys == key.keys && sql.equals(key.sql);
+        }
+
+        @Override
+        public int hashCode() {
+            return sql.hashCode() * 31 + (keys ? 1 : 0);
+        }
+
+    }
+
+    /**
+     * A connection's statements which are not checked out, least recently
+     * used first. The eldest is closed once there are more than the limit.
+     */
+    private static final class StatementCache extends LinkedHashMap<StatementKey, PreparedStatement> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int limit;
+
+        private StatementCache(int limit) {
+            super(16, 0.75f, true);
+            this.limit = limit;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<StatementKey, PreparedStatement> eldest) {
+            if (size() > limit) {
+                closeQuietly(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+
+    }
+
+    /**
+     * A connection belonging to the pool. Prepared statements are cached by
+     * their SQL for as long as the connection lives, so a request only
+     * prepares a statement the first time the connection runs it.
+     */
+    public static class PooledConnection {
+
+        private final Database pool;
+
+        private final Connection connection;
+
+        // statements not checked out, least recently used first
+        private final StatementCache statements;
+
+        private long last_used = System.nanoTime();
+
+        private PooledConnection(Database pool, Connection connection) {
+            this.pool = pool;
+            this.connection = connection;
+
+            statements = new StatementCache(pool.statement_limit);
+        }
+
+        public Connection getConnection() {
+            return connection;
+        }
+
+        /**
+         * Checks a statement out of the cache, preparing it if the cache does
+         * not have one. It is not shared until it is given back with
+         * {@link #release}, so the same SQL can be open twice.
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            return prepare(sql, false);
+        }
+
+        /**
+         * Checks a statement out of the cache like {@link #prepare(String)}.
+         *
+         * @param keys whether the statement returns the keys generated by the
+         * rows it inserts, only asked for when they are needed since it can
+         * change how some drivers run the statement
+         */
+        public PreparedStatement prepare(String sql, boolean keys) throws SQLException {
+            PreparedStatement statement = statements.remove(new StatementKey(sql, keys));
+
+            if (statement != null) {
+                pool.statement_hits.incrementAndGet();
+            } else {
+                pool.statement_misses.incrementAndGet();
+
+                statement = keys
+                        ? connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)
+                        : connection.prepareStatement(sql);
+            }
+
+            // the last request may have changed it
+            statement.setFetchSize(pool.fetch_size);
+
+            return statement;
+        }
+
+        /**
+         * Puts a statement back in the cache. If the cache already has one
+         * for the same SQL, or caching is off, the statement is closed.
+         */
+        public void release(String sql, PreparedStatement statement) {
+            release(sql, false, statement);
+        }
+
+        /**
+         * Puts a statement back in the cache, under the SQL and whether it
+         * returns generated keys.
+         */
+        public void release(String sql, boolean keys, PreparedStatement statement) {
+            try {
+                if (statement.isClosed()) {
+                    return;
+                }
+
+                statement.clearParameters();
+                statement.clearBatch();
+            } catch (SQLException ex) {
+                closeQuietly(statement);
+                return;
+            }
+
+            if (pool.statement_limit <= 0 || statements.putIfAbsent(new StatementKey(sql, keys), statement) != null) {
+                closeQuietly(statement);
+            }
+        }
+
+        private void close() throws SQLException {
+            statements.values().forEach(Database::closeQuietly);
+            statements.clear();
+            connection.close();
+        }
+
+    }
 
     public Database(Properties properties, CountDownLatch latch) throws IOException, SQLException {
+        String options = properties.getProperty("options", "").trim();
+        String explicit = properties.getProperty("url", "").trim();
+
+        // drivers whose urls do not look like mysql's are given the whole url
+        url = !explicit.isEmpty() ? explicit : String.format("%s://%s/%s?user=%s&password=%s%s",
+                properties.getProperty("provider"), properties.getProperty("server"), properties.getProperty("database"),
+                properties.getProperty("user"), properties.getProperty("password"), options.isEmpty() ? "" : "&" + options);
+
+        min = Integer.parseInt(properties.getProperty("pool.min", "2"));
+        max = Math.max(min, Integer.parseInt(properties.getProperty("pool.max", "10")));
+        timeout = Long.parseLong(properties.getProperty("pool.timeout", "5000"));
+        validation_timeout = Integer.parseInt(properties.getProperty("pool.validation_timeout", "2"));
+        idle_timeout = TimeUnit.SECONDS.toNanos(Long.parseLong(properties.getProperty("pool.idle_timeout", "300")));
+        statement_limit = Integer.parseInt(properties.getProperty("pool.statements", "32"));
+        fetch_size = Integer.parseInt(properties.getProperty("fetch_size", "0"));
+
+        cache = new QueryCache(Long.parseLong(properties.getProperty("cache.size", "16777216")));
+
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "DB Pool Evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+
         Thread connectthread = new Thread(() -> {
             try {
+                Class.forName(properties.getProperty("driver")).newInstance();
+            } catch (ClassNotFoundException | IllegalAccessException | InstantiationException | ExceptionInInitializerError ex) {
+                throw new IllegalStateException("Database driver is invalid");
+            }
+
+            // keep trying until the database is reachable, the server waits on the latch
+            while (!fillToMinimum()) {
                 try {
-                    Class.forName(properties.getProperty("driver")).newInstance();
-                } catch (ClassNotFoundException | IllegalAccessException | InstantiationException | ExceptionInInitializerError ex) {
-                    throw new IllegalStateException("Database driver is invalid");
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(RECONNECT_DELAY));
+                } catch (InterruptedException ex) {
+                    return;
                 }
+            }
+
+            Logger.getLogger(Database.class.toString()).log(Level.INFO, "Successfully connected to database");
+
+            evictor.scheduleWithFixedDelay(this::evict, EVICTION_PERIOD, EVICTION_PERIOD, TimeUnit.SECONDS);
+
+            latch.countDown();
+        }, "DB Connector");
 
-                connection = DriverManager.getConnection(String.format("%s://%s/%s?user=%s&password=%s",
-                        properties.getProperty("provider"), properties.getProperty("server"), properties.getProperty("database"),
-                        properties.getProperty("user"), properties.getProperty("password")));
+        connectthread.start();
+    }
+
+    /**
+     * Takes a connection from the pool, opening one if every connection is in
+     * use and the pool is not full.
+     *
+     * @throws SQLException if no connection became free within the timeout,
+     * or a new one could not be opened
+     */
+    public PooledConnection borrow() throws SQLException {
+        borrows.incrementAndGet();
+
+        long pre = System.nanoTime();
+        long deadline = pre + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        try {
+            while (true) {
+                PooledConnection connection = null;
+                boolean open_new = false;
 
-                Logger.getLogger(Database.class.toString()).log(Level.INFO, "Successfully connected to database");
+                lock.lock();
+                try {
+                    while (idle.isEmpty() && total >= max) {
+                        long remaining = deadline - System.nanoTime();
+
+                        if (remaining <= 0) {
+                            timeouts.incrementAndGet();
+                            throw new SQLException("Timed out waiting for a database connection");
+                        }
+
+                        returned.awaitNanos(remaining);
+                    }
+
+                    if (!idle.isEmpty()) {
+                        connection = idle.pop();
+                    } else {
+                        total++;
+                        open_new = true;
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while waiting for a database connection", ex);
+                } finally {
+                    lock.unlock();
+                }
+
+                // connections are opened and validated outside the lock, both talk to the database
+                if (open_new) {
+                    return open();
+                } else if (isValid(connection)) {
+                    return connection;
+                }
+
+                discard(connection);
+            }
+        } finally {
+            long waited = System.nanoTime() - pre;
+            wait_nanos.addAndGet(waited);
+            max_wait_nanos.accumulateAndGet(waited, Math::max);
+        }
+    }
 
-                latch.countDown();
+    /**
+     * Gives a connection back to the pool. Connections which were closed
+     * while borrowed are dropped.
+     */
+    public void release(PooledConnection connection) {
+        boolean closed;
 
+        try {
+            closed = connection.connection.isClosed();
+        } catch (SQLException ex) {
+            closed = true;
+        }
+
+        if (closed) {
+            discard(connection);
+            return;
+        }
+
+        connection.last_used = System.nanoTime();
+
+        lock.lock();
+        try {
+            idle.push(connection);
+            returned.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private PooledConnection open() throws SQLException {
+        try {
+            PooledConnection connection = new PooledConnection(this, DriverManager.getConnection(url));
+            opened.incrementAndGet();
+            return connection;
+        } catch (SQLException | RuntimeException ex) {
+            lock.lock();
+            try {
+                total--;
+                returned.signal();
+            } finally {
+                lock.unlock();
+            }
+            throw ex;
+        }
+    }
+
+    private boolean isValid(PooledConnection connection) {
+        try {
+            return connection.connection.isValid(validation_timeout);
+        } catch (SQLException ex) {
+            return false;
+        }
+    }
+
+    private void discard(PooledConnection connection) {
+        discarded.incrementAndGet();
+
+        lock.lock();
+        try {
+            total--;
+            returned.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            connection.close();
+        } catch (SQLException ex) {
+            Logger.getLogger(Database.class.toString()).log(Level.FINE, "Could not close discarded connection", ex);
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException ex) {
+            Logger.getLogger(Database.class.toString()).log(Level.FINE, "Could not close cached statement", ex);
+        }
+    }
+
+    /**
+     * Opens connections until the pool has its minimum.
+     *
+     * @return false if the database could not be reached
+     */
+    private boolean fillToMinimum() {
+        while (true) {
+            lock.lock();
+            try {
+                if (total >= min) {
+                    return true;
+                }
+                total++;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                release(open());
             } catch (SQLException ex) {
                 Logger.getLogger(Database.class.toString()).log(Level.SEVERE, "Can not connect to database", ex);
-                connection = null;
+                return false;
             }
-        }, "DB Connector");
+        }
+    }
 
-        connectthread.start();
+    /**
+     * Closes connections which have been idle for too long, then replaces any
+     * connections lost since the last run.
+     */
+    private void evict() {
+        long now = System.nanoTime();
+        ArrayDeque<PooledConnection> expired = new ArrayDeque<>();
+
+        lock.lock();
+        try {
+            // the oldest connections are at the end
+            for (Iterator<PooledConnection> it = idle.descendingIterator(); it.hasNext() && total - expired.size() > min;) {
+                PooledConnection connection = it.next();
+
+                if (now - connection.last_used > idle_timeout) {
+                    it.remove();
+                    expired.add(connection);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        expired.forEach(this::discard);
+
+        fillToMinimum();
+    }
+
+    public QueryCache getQueryCache() {
+        return cache;
+    }
+
+    /**
+     * @return the number of open connections, borrowed or idle
+     */
+    public int getTotal() {
+        lock.lock();
+        try {
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getIdle() {
+        lock.lock();
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the fraction of the maximum pool size which is borrowed
+     */
+    public double getUtilisation() {
+        lock.lock();
+        try {
+            return (total - idle.size()) / (double) max;
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public Connection getConnection() {
-        return connection;
+    public int getMaximum() {
+        return max;
+    }
+
+    public long getBorrows() {
+        return borrows.get();
+    }
+
+    /**
+     * @return the total time spent in {@link #borrow}, in nanoseconds
+     */
+    public long getWaitNanos() {
+        return wait_nanos.get();
+    }
+
+    /**
+     * @return the longest time a single {@link #borrow} took, in nanoseconds
+     */
+    public long getMaxWaitNanos() {
+        return max_wait_nanos.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    public long getOpened() {
+        return opened.get();
+    }
+
+    public long getDiscarded() {
+        return discarded.get();
+    }
+
+    /**
+     * @return the number of statements taken from a connection's cache
+     */
+    public long getStatementHits() {
+        return statement_hits.get();
+    }
+
+    /**
+     * @return the number of statements which had to be prepared
+     */
+    public long getStatementMisses() {
+        return statement_misses.get();
     }
 
     @Override
     public void close() throws IOException {
+        evictor.shutdownNow();
+
+        SQLException failure = null;
+
+        lock.lock();
         try {
-            connection.close();
-        } catch (SQLException ex) {
-            throw new IOException(ex);
+            for (PooledConnection connection : idle) {
+                try {
+                    connection.close();
+                } catch (SQLException ex) {
+                    failure = ex;
+                }
+            }
+            total -= idle.size();
+            idle.clear();
+        } finally {
+            lock.unlock();
+        }
+
+        if (failure != null) {
+            throw new IOException(failure);
         }
     }
 
     static {
         // A hack to speed up SSL certificate creation
         // From https://stackoverflow.com/a/49322949/11489951
-        
+
         String provider = "SunMSCAPI"; // original provider
         String type = "SecureRandom"; // service type
         String alg = "Windows-PRNG"; // algorithm
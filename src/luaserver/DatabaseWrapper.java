@@ -5,17 +5,34 @@
  */
 package luaserver;
 
+import com.google.gson.stream.JsonWriter;
+import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.sql.Blob;
+import java.sql.Clob;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
-import java.util.HashSet;
+import java.time.temporal.TemporalAccessor;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import luaserver.HTTPHelpers.HTTPResponse;
+import org.luaj.vm2.LuaInteger;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.ZeroArgFunction;
 import org.luaj.vm2.lib.jse.CoerceJavaToLua;
 
 /**
@@ -24,17 +41,49 @@ import org.luaj.vm2.lib.jse.CoerceJavaToLua;
  */
 public class DatabaseWrapper {
 
+    // looked up once, parameters are bound on every query
+    private static final Logger LOGGER = Logger.getLogger(DatabaseWrapper.class.getName());
+
     public static class StatementWrapper implements Closeable {
 
-        private final PreparedStatement statement;
-        private final HashSet<StatementWrapper> openstatements;
+        private final String sql;
+        private final Database.PooledConnection connection;
+        private final Set<StatementWrapper> openstatements;
+        private final QueryCache cache;
 
-        public StatementWrapper(PreparedStatement statement, HashSet<StatementWrapper> openstatements) {
-            this.statement = statement;
+        // swapped for one which returns generated keys the first time insert is called
+        private PreparedStatement statement;
+        private boolean keys;
+
+        // seconds select results are cached for, 0 when they are not
+        private double ttl;
+
+        // the open cursor of rows or stream, closed when the statement runs again
+        private ResultSet results;
+        private RowStream stream;
+
+        public StatementWrapper(String sql, Database.PooledConnection connection, Set<StatementWrapper> openstatements,
+                QueryCache cache) throws SQLException {
+            this.sql = sql;
+            this.statement = connection.prepare(sql);
+            this.connection = connection;
             this.openstatements = openstatements;
+            this.cache = cache;
             openstatements.add(this);
         }
 
+        /**
+         * Caches the results of {@link #select} for the given number of
+         * seconds, by the statement's SQL and parameters. Only worth it for
+         * reads which repeat often, see {@link QueryCache}.
+         *
+         * @return the statement, so it can be chained after prepare
+         */
+        public StatementWrapper cache(double seconds) {
+            ttl = seconds;
+            return this;
+        }
+
         public LuaValue select() {
             return select(null);
         }
@@ -48,20 +97,17 @@ public class DatabaseWrapper {
                 return LuaTable.NIL;
             }
 
-            try {
-                ResultSet results = statement.executeQuery();
+            if (ttl > 0 && cache.isEnabled()) {
+                return selectCached(parameters);
+            }
+
+            try (ResultSet results = statement.executeQuery()) {
                 ResultSetMetaData metadata = results.getMetaData();
                 LuaTable data = new LuaTable();
                 int current = 1;
 
                 while (results.next()) {
-                    LuaTable row = new LuaTable();
-
-                    for (int i = 1; i <= metadata.getColumnCount(); i++) {
-                        row.set(metadata.getColumnLabel(i), CoerceJavaToLua.coerce(results.getObject(i)));
-                    }
-
-                    data.set(LuaValue.valueOf(current), row);
+                    data.set(LuaValue.valueOf(current), readRow(results, metadata));
                     current++;
                 }
 
@@ -73,6 +119,196 @@ public class DatabaseWrapper {
 
         }
 
+        private LuaValue selectCached(LuaTable parameters) {
+            Object[] key = toJava(parameters);
+
+            QueryCache.Result result = cache.get(sql, key);
+
+            if (result == null) {
+                long generation = cache.getGeneration();
+
+                try (ResultSet results = statement.executeQuery()) {
+                    ResultSetMetaData metadata = results.getMetaData();
+                    String[] labels = new String[metadata.getColumnCount()];
+
+                    for (int i = 0; i < labels.length; i++) {
+                        labels[i] = metadata.getColumnLabel(i + 1);
+                    }
+
+                    ArrayList<Object[]> rows = new ArrayList<>();
+
+                    while (results.next()) {
+                        Object[] row = new Object[labels.length];
+
+                        for (int i = 0; i < row.length; i++) {
+                            row[i] = results.getObject(i + 1);
+                        }
+
+                        rows.add(row);
+                    }
+
+                    result = new QueryCache.Result(labels, rows);
+                } catch (SQLException ex) {
+                    Logger.getLogger(DatabaseWrapper.class.getName()).log(Level.SEVERE, null, ex);
+                    return LuaTable.NIL;
+                }
+
+                cache.put(sql, key, result, generation, ttl);
+            }
+
+            // new tables every time, scripts may change what they are given
+            LuaTable data = new LuaTable();
+            String[] labels = result.getLabels();
+            int current = 1;
+
+            for (Object[] values : result.getRows()) {
+                LuaTable row = new LuaTable();
+
+                for (int i = 0; i < labels.length; i++) {
+                    row.set(labels[i], CoerceJavaToLua.coerce(values[i]));
+                }
+
+                data.set(current++, row);
+            }
+
+            return data;
+        }
+
+        private static Object[] toJava(LuaTable parameters) {
+            if (parameters == null || parameters.isnil()) {
+                return new Object[0];
+            }
+
+            Object[] values = new Object[parameters.length()];
+
+            for (int i = 0; i < values.length; i++) {
+                LuaValue value = parameters.get(i + 1);
+
+                if (value.isboolean()) {
+                    values[i] = value.toboolean();
+                } else if (value.isint()) {
+                    values[i] = value.toint();
+                } else if (value.isnumber()) {
+                    values[i] = value.todouble();
+                } else if (value.isstring()) {
+                    values[i] = value.tojstring();
+                } else {
+                    values[i] = value.touserdata();
+                }
+            }
+
+            return values;
+        }
+
+        public LuaValue rows() {
+            return rows(null);
+        }
+
+        /**
+         * Runs the query and returns an iterator over its rows, for a generic
+         * for: {@code for row in stmt:rows({...}) do ... end}. Only the current
+         * row is held as a table, {@link #setFetchSize} controls how many the
+         * driver fetches at once. The iterator ends early if the statement is
+         * run again or closed.
+         */
+        public LuaValue rows(LuaTable parameters) {
+            ResultSet cursor = execute(parameters);
+
+            if (cursor == null) {
+                return LuaValue.NIL;
+            }
+
+            return new ZeroArgFunction() {
+                @Override
+                public LuaValue call() {
+                    try {
+                        if (cursor.isClosed() || !cursor.next()) {
+                            cursor.close();
+                            return LuaValue.NIL;
+                        }
+
+                        return readRow(cursor, cursor.getMetaData());
+                    } catch (SQLException ex) {
+                        Logger.getLogger(DatabaseWrapper.class.getName()).log(Level.SEVERE, null, ex);
+                        return LuaValue.NIL;
+                    }
+                }
+            };
+        }
+
+        public LuaValue stream() {
+            return stream(null);
+        }
+
+        /**
+         * Runs the query for an endpoint to return as its {@code content}. The
+         * rows are written into the response as a JSON array of objects while
+         * it is being sent, instead of being read into tables first. The
+         * statement belongs to the stream from then on.
+         */
+        public LuaValue stream(LuaTable parameters) {
+            ResultSet cursor = execute(parameters);
+
+            if (cursor == null) {
+                return LuaValue.NIL;
+            }
+
+            stream = new RowStream(this, cursor);
+
+            return CoerceJavaToLua.coerce(stream);
+        }
+
+        /**
+         * Sets how many rows the driver fetches at once for this statement,
+         * until it is closed.
+         */
+        public void setFetchSize(int rows) {
+            try {
+                statement.setFetchSize(rows);
+            } catch (SQLException ex) {
+                Logger.getLogger(DatabaseWrapper.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+
+        private ResultSet execute(LuaTable parameters) {
+            if (parameters != null && !parameters.isnil() && !setParameters(parameters)) {
+                return null;
+            }
+
+            closeResults();
+
+            try {
+                results = statement.executeQuery();
+                return results;
+            } catch (SQLException ex) {
+                Logger.getLogger(DatabaseWrapper.class.getName()).log(Level.SEVERE, null, ex);
+                return null;
+            }
+        }
+
+        private void closeResults() {
+            if (results != null) {
+                try {
+                    results.close();
+                } catch (SQLException ex) {
+                    Logger.getLogger(DatabaseWrapper.class.getName()).log(Level.FINE, null, ex);
+                }
+                results = null;
+            }
+
+            stream = null;
+        }
+
+        private static LuaTable readRow(ResultSet results, ResultSetMetaData metadata) throws SQLException {
+            LuaTable row = new LuaTable();
+
+            for (int i = 1; i <= metadata.getColumnCount(); i++) {
+                row.set(metadata.getColumnLabel(i), CoerceJavaToLua.coerce(results.getObject(i)));
+            }
+
+            return row;
+        }
+
         public LuaValue update(LuaTable parameters) {
             if (parameters != null && !parameters.isnil()) {
                 if (!setParameters(parameters)) {
@@ -81,13 +317,117 @@ public class DatabaseWrapper {
             }
 
             try {
-                return LuaValue.valueOf(statement.executeUpdate());
+                int count = statement.executeUpdate();
+
+                cache.invalidate(sql);
+
+                return LuaValue.valueOf(count);
             } catch (SQLException ex) {
                 Logger.getLogger(DatabaseWrapper.class.getName()).log(Level.SEVERE, null, ex);
                 return LuaTable.NIL;
             }
         }
 
+        public LuaValue insert() {
+            return insert(null);
+        }
+
+        /**
+         * Runs an INSERT. The first call prepares the statement again to
+         * return generated keys.
+         *
+         * @return the key the database generated for the new row, or the
+         * update count if it did not generate one
+         */
+        public LuaValue insert(LuaTable parameters) {
+            try {
+                prepareKeys();
+            } catch (SQLException ex) {
+                Logger.getLogger(DatabaseWrapper.class.getName()).log(Level.SEVERE, null, ex);
+                return LuaTable.NIL;
+            }
+
+            if (parameters != null && !parameters.isnil() && !setParameters(parameters)) {
+                return LuaTable.NIL;
+            }
+
+            try {
+                LuaValue result = LuaValue.valueOf(statement.executeUpdate());
+
+                try (ResultSet generated = statement.getGeneratedKeys()) {
+                    if (generated != null && generated.next()) {
+                        Object key = generated.getObject(1);
+
+                        // drivers tend to return keys as BigInteger, which lua would only see as userdata
+                        result = key instanceof Number ? LuaInteger.valueOf(((Number) key).longValue()) : CoerceJavaToLua.coerce(key);
+                    }
+                }
+
+                cache.invalidate(sql);
+
+                return result;
+            } catch (SQLException ex) {
+                Logger.getLogger(DatabaseWrapper.class.getName()).log(Level.SEVERE, null, ex);
+                return LuaTable.NIL;
+            }
+        }
+
+        /**
+         * Runs the statement once for every parameter table in
+         * {@code batch}, sent to the database together instead of one round
+         * trip per row.
+         *
+         * @return the update count of every row, in order
+         */
+        public LuaValue batch(LuaTable batch) {
+            try {
+                for (int i = 1; i <= batch.length(); i++) {
+                    if (!setParameters(batch.get(i).checktable())) {
+                        return LuaTable.NIL;
+                    }
+
+                    statement.addBatch();
+                }
+
+                int[] counts = statement.executeBatch();
+
+                cache.invalidate(sql);
+
+                LuaTable data = new LuaTable();
+
+                for (int i = 0; i < counts.length; i++) {
+                    data.set(i + 1, LuaValue.valueOf(counts[i]));
+                }
+
+                return data;
+            } catch (SQLException ex) {
+                Logger.getLogger(DatabaseWrapper.class.getName()).log(Level.SEVERE, null, ex);
+                return LuaTable.NIL;
+            } finally {
+                // a bad row leaves the rows before it queued up, which the
+                // next batch on this statement would run as well
+                try {
+                    statement.clearBatch();
+                } catch (SQLException clear) {
+                    Logger.getLogger(DatabaseWrapper.class.getName()).log(Level.FINE, null, clear);
+                }
+            }
+        }
+
+        private void prepareKeys() throws SQLException {
+            if (keys) {
+                return;
+            }
+
+            PreparedStatement keyed = connection.prepare(sql, true);
+
+            closeResults();
+            connection.release(sql, statement);
+
+            statement = keyed;
+            keys = true;
+        }
+
         private boolean setParameters(LuaTable parameters) {
             try {
                 statement.clearParameters();
@@ -98,7 +438,6 @@ public class DatabaseWrapper {
 
                 for (int i = 1; i <= parameters.length(); i++) {
                     setParameter(i, parameters.get(i));
-                    System.out.println(i);
                 }
             } catch (SQLException ex) {
                 Logger.getLogger(DatabaseWrapper.class.getName()).log(Level.SEVERE, null, ex);
@@ -122,37 +461,215 @@ public class DatabaseWrapper {
                 Logger.getLogger(DatabaseWrapper.class.getName()).log(Level.SEVERE,
                         "Unsupported prepared statement type {0}", value.typename());
             }
-            System.out.println(i + ":" + value.typename());
+
+            if (LOGGER.isLoggable(Level.FINEST)) {
+                LOGGER.log(Level.FINEST, "Bound parameter {0} as {1}", new Object[]{i, value.typename()});
+            }
         }
 
+        /**
+         * Gives the statement back to its connection's cache. Closing twice
+         * does nothing.
+         */
         @Override
-        public void close() throws IOException {
+        public void close() {
+            if (openstatements.remove(this)) {
+                closeResults();
+                connection.release(sql, keys, statement);
+            }
+        }
+
+    }
+
+    /**
+     * The rows of a query, written to a response as a JSON array of objects.
+     * Once an endpoint returns it, it takes over the request's connection:
+     * the state goes back to the pool as soon as the handler returns, and the
+     * connection follows when the stream is closed after the response was
+     * sent.
+     */
+    public static class RowStream implements HTTPResponse.Body {
+
+        private final StatementWrapper statement;
+        private final ResultSet results;
+
+        private boolean attached;
+
+        // set once the stream owns the connection
+        private Database owner;
+
+        private boolean closed;
+
+        private RowStream(StatementWrapper statement, ResultSet results) {
+            this.statement = statement;
+            this.results = results;
+        }
+
+        /**
+         * Marks the stream as the content of a response, so the connection is
+         * kept for it when the request is done with the state.
+         */
+        public void attach() {
+            attached = true;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            JsonWriter json = new JsonWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+
             try {
+                ResultSetMetaData metadata = results.getMetaData();
+                String[] labels = new String[metadata.getColumnCount()];
+
+                for (int i = 0; i < labels.length; i++) {
+                    labels[i] = metadata.getColumnLabel(i + 1);
+                }
+
+                json.beginArray();
+
+                while (results.next()) {
+                    json.beginObject();
+
+                    for (int i = 0; i < labels.length; i++) {
+                        json.name(labels[i]);
+                        writeValue(json, results.getObject(i + 1));
+                    }
+
+                    json.endObject();
+                }
+
+                json.endArray();
+                json.flush();
+            } catch (SQLException ex) {
+                throw new IOException("Could not read rows", ex);
+            }
+        }
+
+        /**
+         * Binary values are written as Base64 strings. Values JSON has no
+         * form for, such as arrays or structs, fail the stream instead of
+         * being written as whatever their toString gives.
+         */
+        private static void writeValue(JsonWriter json, Object value) throws IOException, SQLException {
+            if (value == null) {
+                json.nullValue();
+            } else if (value instanceof Boolean) {
+                json.value((Boolean) value);
+            } else if (value instanceof Number) {
+                json.value((Number) value);
+            } else if (value instanceof CharSequence || value instanceof Character || value instanceof UUID
+                    || value instanceof Date || value instanceof TemporalAccessor) {
+                json.value(value.toString());
+            } else if (value instanceof byte[]) {
+                json.value(Base64.getEncoder().encodeToString((byte[]) value));
+            } else if (value instanceof Blob) {
+                Blob blob = (Blob) value;
+
+                try {
+                    json.value(Base64.getEncoder().encodeToString(blob.getBytes(1, length(blob.length()))));
+                } finally {
+                    blob.free();
+                }
+            } else if (value instanceof Clob) {
+                Clob clob = (Clob) value;
+
+                try {
+                    json.value(clob.getSubString(1, length(clob.length())));
+                } finally {
+                    clob.free();
+                }
+            } else {
+                throw new IOException("Cannot write a " + value.getClass().getName() + " column as JSON");
+            }
+        }
+
+        private static int length(long length) throws IOException {
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Column of " + length + " bytes is too large to write as JSON");
+            }
+
+            return (int) length;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+
+            if (owner == null) {
                 statement.close();
-                openstatements.remove(this);
+                return;
+            }
+
+            try {
+                results.close();
             } catch (SQLException ex) {
-                Logger.getLogger(DatabaseWrapper.class.getName()).log(Level.SEVERE, null, ex);
-                throw new IOException(ex);
+                Logger.getLogger(DatabaseWrapper.class.getName()).log(Level.FINE, null, ex);
             }
+
+            statement.connection.release(statement.sql, statement.keys, statement.statement);
+            owner.release(statement.connection);
         }
 
     }
 
     private final Database database;
 
-    private final HashSet<StatementWrapper> openstatements = new HashSet<>();
+    private final Set<StatementWrapper> openstatements = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    // borrowed by the first statement of a request, held until release
+    private Database.PooledConnection connection;
 
+    /**
+     * Every lua state has its own wrapper, the state's current request owns
+     * the connection it borrows.
+     */
     public DatabaseWrapper(Database database) {
         this.database = database;
     }
 
     public StatementWrapper prepare(String sql) {
         try {
-            return new StatementWrapper(database.getConnection().prepareStatement(sql), openstatements);
+            if (connection == null) {
+                connection = database.borrow();
+            }
+
+            return new StatementWrapper(sql, connection, openstatements, database.getQueryCache());
         } catch (SQLException ex) {
             Logger.getLogger(DatabaseWrapper.class.getName()).log(Level.SEVERE, null, ex);
             return null;
         }
     }
 
+    /**
+     * Closes the statements the request left open and gives its connection
+     * back to the pool, unless a {@link RowStream} returned by the request
+     * still needs it. Called once the request is finished with the state.
+     */
+    public void release() {
+        RowStream handoff = null;
+
+        for (StatementWrapper statement : openstatements) {
+            if (statement.stream != null && statement.stream.attached && handoff == null) {
+                // still to be written, the stream closes it
+                openstatements.remove(statement);
+                handoff = statement.stream;
+            } else {
+                statement.close();
+            }
+        }
+
+        if (connection != null) {
+            if (handoff != null) {
+                handoff.owner = database;
+            } else {
+                database.release(connection);
+            }
+            connection = null;
+        }
+    }
+
 }
@@ -0,0 +1,200 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package luaserver;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Loads the endpoint scripts into a {@link LuaStatePool} and publishes its
+ * endpoints to the server, and does it again whenever a script in the
+ * endpoints directory changes.
+ * <p>
+ * Scripts share globals (endpoints use modules declared in other files), so
+ * a change reloads a whole new pool rather than a single file. The new pool
+ * is loaded and warmed up on the watcher thread and then swapped in with
+ * {@link ServerManager#setEndpoints}. Requests already running finish on the
+ * old pool. With luajc, only changed scripts are compiled again.
+ *
+ * @author azalac
+ */
+public class EndpointReloader implements Runnable {
+
+    // how long the directory must be quiet before reloading, editors write files in several steps
+    private static final long SETTLE_MILLIS = 250;
+
+    // how long requests on a replaced pool are given to finish before it is closed
+    private static final long DRAIN_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final Database database;
+    private final Path directory;
+    private final Properties properties;
+    private final ServerManager server;
+
+    private final ScriptCompiler compiler;
+
+    private volatile LuaStatePool current;
+
+    private final AtomicLong reloads = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    private Thread watcher;
+
+    public EndpointReloader(Database database, Path directory, Properties properties, ServerManager server) {
+        this.database = database;
+        this.directory = directory;
+        this.properties = properties;
+        this.server = server;
+
+        compiler = ScriptCompiler.fromProperties(properties);
+    }
+
+    /**
+     * Loads a new pool and swaps its endpoints in, then closes the old pool
+     * once its requests have finished. If any script or endpoint could not be
+     * loaded, the new pool is dropped and the old endpoints stay in place.
+     *
+     * @return true if the new endpoints were published
+     */
+    public synchronized boolean reload() {
+        long pre = System.nanoTime();
+
+        LuaStatePool pool = new LuaStatePool(database, compiler, directory, properties);
+        ArrayList<LuaEndpoint> endpoints = new ArrayList<>();
+
+        try {
+            pool.start(endpoints::add);
+        } catch (RuntimeException ex) {
+            failures.incrementAndGet();
+            Logger.getLogger(EndpointReloader.class.getName()).log(Level.SEVERE, "Could not load endpoints, keeping the old ones", ex);
+            pool.close(0);
+            return false;
+        }
+
+        LuaStatePool previous = current;
+
+        server.setEndpoints(endpoints);
+        current = pool;
+
+        reloads.incrementAndGet();
+
+        if (compiler != null) {
+            try {
+                compiler.retain(getScripts());
+            } catch (IOException ex) {
+                Logger.getLogger(EndpointReloader.class.getName()).log(Level.WARNING, "Could not drop old compiled scripts", ex);
+            }
+        }
+
+        Logger.getLogger(EndpointReloader.class.getName()).log(Level.INFO, "Published {0} endpoints in {1} seconds",
+                new Object[]{endpoints.size(), (System.nanoTime() - pre) / 1e9});
+
+        if (previous != null) {
+            previous.close(DRAIN_MILLIS);
+        }
+
+        return true;
+    }
+
+    /**
+     * Starts watching the endpoints directory on a background thread.
+     */
+    public void watch() {
+        watcher = new Thread(this, "Endpoint Watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    public void stop() {
+        if (watcher != null) {
+            watcher.interrupt();
+            watcher = null;
+        }
+    }
+
+    /**
+     * @return the pool the current endpoints run on
+     */
+    public LuaStatePool getPool() {
+        return current;
+    }
+
+    public long getReloads() {
+        return reloads.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public void run() {
+        try (WatchService service = FileSystems.getDefault().newWatchService()) {
+
+            register(service);
+
+            while (!Thread.interrupted()) {
+                WatchKey key = service.take();
+
+                boolean changed = drain(key);
+
+                // keep collecting events until the directory has been quiet for a moment
+                while ((key = service.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    changed |= drain(key);
+                }
+
+                if (changed) {
+                    Logger.getLogger(EndpointReloader.class.getName()).log(Level.INFO, "Endpoint scripts changed, reloading");
+
+                    // new sub-directories need watching too
+                    register(service);
+                    reload();
+                }
+            }
+
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ex) {
+            Logger.getLogger(EndpointReloader.class.getName()).log(Level.SEVERE, "Could not watch endpoints directory", ex);
+        }
+    }
+
+    private void register(WatchService service) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.filter(Files::isDirectory).collect(Collectors.toList())) {
+                path.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            }
+        }
+    }
+
+    private static boolean drain(WatchKey key) {
+        boolean changed = !key.pollEvents().isEmpty();
+        key.reset();
+        return changed;
+    }
+
+    private List<Path> getScripts() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            return paths.filter(p -> p.toString().endsWith("lua")).collect(Collectors.toList());
+        }
+    }
+
+}
@@ -5,9 +5,22 @@
  */
 package luaserver;
 
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.luaj.vm2.LuaValue;
 
 /**
  *
@@ -81,9 +94,12 @@ public class HTTPHelpers {
 
         private final int code;
 
+        private byte[] status_line;
+
         static {
             for (HTTPStatusCode status : HTTPStatusCode.values()) {
                 statuses.put(status.code, status);
+                status.status_line = encodeStatusLine(status, status.name());
             }
         }
 
@@ -99,6 +115,18 @@ public class HTTPHelpers {
             return statuses.getOrDefault(code, null);
         }
 
+        /**
+         * @return the encoded status line for this status with its default
+         * reason, including the line ending
+         */
+        byte[] getStatusLine() {
+            return status_line;
+        }
+
+        static byte[] encodeStatusLine(HTTPStatusCode status, String reason) {
+            return ("HTTP/1.1 " + status.code + " " + reason + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        }
+
     }
 
     public static class HTTPRequest {
@@ -106,13 +134,36 @@ public class HTTPHelpers {
         private final String method;
         private final String request;
         private final String version;
-        private final String content;
+        private final byte[] content;
 
-        private final HashMap<String, String> headers;
+        private String decoded_content;
+
+        private final Map<String, String> headers;
 
         private HashMap<String, String> querydata;
 
-        public HTTPRequest(String method, String request, String version, HashMap<String, String> headers, String content) {
+        private Map<String, String> pathvalues = Collections.emptyMap();
+
+        private int max_json_size = LuaJsonReader.DEFAULT_MAX_SIZE,
+                max_json_depth = LuaJsonReader.DEFAULT_MAX_DEPTH;
+
+        // decoded the first time a script asks for it
+        private LuaValue json;
+
+        /**
+         * @param headers the request headers, lookups use the map's own key
+         * comparison so it should ignore case
+         */
+        public HTTPRequest(String method, String request, String version, Map<String, String> headers, String content) {
+            this(method, request, version, headers, content.getBytes(StandardCharsets.UTF_8));
+            this.decoded_content = content;
+        }
+
+        /**
+         * @param content the raw request content, decoded as UTF-8 the first
+         * time {@link #getContent()} is called
+         */
+        public HTTPRequest(String method, String request, String version, Map<String, String> headers, byte[] content) {
             this.method = method;
             this.request = request;
             this.version = version;
@@ -171,40 +222,181 @@ public class HTTPHelpers {
             return getQueryData().getOrDefault(key, null);
         }
 
+        /**
+         * @return the values the endpoint's path parameters captured, by
+         * parameter name
+         * @see Router
+         */
+        public Map<String, String> getPathValues() {
+            return pathvalues;
+        }
+
+        public String getPathValue(String name) {
+            return pathvalues.getOrDefault(name, null);
+        }
+
+        void setPathValues(Map<String, String> values) {
+            pathvalues = values;
+        }
+
         public String getVersion() {
             return version;
         }
 
         public String getContent() {
+            if (decoded_content == null) {
+                decoded_content = new String(content, StandardCharsets.UTF_8);
+            }
+
+            return decoded_content;
+        }
+
+        public byte[] getContentBytes() {
             return content;
         }
 
+        /**
+         * Decodes JSON content into lua tables the first time it is called,
+         * later calls return the same value.
+         *
+         * @return the decoded content, or nil if there is none or it is not
+         * {@code application/json}
+         * @throws LuaJsonReader.InvalidJsonException if the content is not
+         * valid JSON, or is over the limits
+         */
+        public LuaValue getJson() {
+            if (json != null) {
+                return json;
+            }
+
+            if (content.length == 0 || !isJson(getHeader("Content-Type"))) {
+                json = LuaValue.NIL;
+            } else if (content.length > max_json_size) {
+                throw new LuaJsonReader.InvalidJsonException("JSON content is larger than " + max_json_size + " bytes");
+            } else {
+                json = LuaJsonReader.read(content, max_json_depth);
+            }
+
+            return json;
+        }
+
+        /**
+         * @param max_size the most bytes of JSON {@link #getJson()} decodes
+         * @param max_depth the deepest nesting it accepts
+         */
+        void setJsonLimits(int max_size, int max_depth) {
+            max_json_size = max_size;
+            max_json_depth = max_depth;
+        }
+
+        private static boolean isJson(String type) {
+            if (type == null) {
+                return false;
+            }
+
+            int parameters = type.indexOf(';');
+            type = (parameters < 0 ? type : type.substring(0, parameters)).trim().toLowerCase(Locale.ROOT);
+
+            return type.equals("application/json") || type.endsWith("+json");
+        }
+
     }
 
     public static class HTTPResponse {
 
+        private static final byte[] HEADER_SEPARATOR = {':', ' '};
+
+        private static final byte[] CRLF = {'\r', '\n'};
+
+        private static final byte[] NO_CONTENT = new byte[0];
+
+        private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+        private static final HashMap<String, byte[]> HEADER_NAMES = new HashMap<>();
+
+        static {
+            for (String name : new String[]{"Content-Length", "Content-Type", "Connection", "Keep-Alive",
+                "Cache-Control", "ETag", "Last-Modified", "Content-Encoding", "Vary", "Location", "Transfer-Encoding",
+                "Accept-Ranges", "Content-Range"}) {
+                HEADER_NAMES.put(name, name.getBytes(StandardCharsets.ISO_8859_1));
+            }
+        }
+
         private HTTPStatusCode status;
         private String reason;
 
+        private static final int CHUNK_SIZE = 8192;
+
+        /**
+         * Content which is produced while the response is being sent, for
+         * bodies too large to hold in memory. It is closed once the response
+         * is finished with, whether or not it was written.
+         */
+        public interface Body extends Closeable {
+
+            public void writeTo(OutputStream out) throws IOException;
+
+            /**
+             * Writes straight to the client's channel, when the response is
+             * not chunked. Bodies which can hand their bytes to the channel
+             * without copying them, such as files, override this.
+             */
+            public default void writeTo(WritableByteChannel channel) throws IOException {
+                OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), CHUNK_SIZE);
+                writeTo(out);
+                out.flush();
+            }
+
+        }
+
+        /**
+         * A body of known length which can be written a piece at a time to a
+         * non-blocking channel, such as a file sent with {@code transferTo}.
+         * The selector transport sends these from its own thread instead of
+         * having a worker write them.
+         */
+        public interface TransferableBody extends Body {
+
+            /**
+             * Writes as much as the channel takes without blocking.
+             *
+             * @param offset how far into the body to start
+             * @return the number of bytes written, 0 if the channel is full
+             */
+            public long transferTo(long offset, WritableByteChannel channel) throws IOException;
+
+            public long getLength();
+
+        }
+
         private final HashMap<String, String> headers = new HashMap<>();
-        private String content;
+        private byte[] content = NO_CONTENT;
+
+        private Body body;
+        private boolean chunked;
 
         public HTTPResponse() {
-            this(HTTPStatusCode.INTERNAL_SERVER_ERROR, HTTPStatusCode.INTERNAL_SERVER_ERROR.name(), null);
+            this(HTTPStatusCode.INTERNAL_SERVER_ERROR, HTTPStatusCode.INTERNAL_SERVER_ERROR.name(), (String) null);
         }
 
         public HTTPResponse(HTTPStatusCode status) {
-            this(status, status.name(), null);
+            this(status, status.name(), (String) null);
         }
 
         public HTTPResponse(HTTPStatusCode status, String content) {
             this(status, status.name(), content);
         }
 
+        public HTTPResponse(HTTPStatusCode status, byte[] content) {
+            this.status = status;
+            this.reason = status.name();
+            setContent(content);
+        }
+
         public HTTPResponse(HTTPStatusCode status, String reason, String content) {
             this.status = status;
             this.reason = reason;
-            this.content = content;
+            setContent(content);
         }
 
         public void setStatus(int code) {
@@ -215,13 +407,96 @@ public class HTTPHelpers {
             this.status = status;
         }
 
+        public HTTPStatusCode getStatus() {
+            return status;
+        }
+
         public void setReason(String reason) {
             this.reason = reason;
         }
 
+        /**
+         * Sets the content as UTF-8 text.
+         */
         public void setContent(String content) {
-            this.content = content;
-            headers.put("Content-Length", Integer.toString(content.length()));
+            setContent(content == null ? null : content.getBytes(StandardCharsets.UTF_8));
+        }
+
+        public void setContent(byte[] content) {
+            if (body != null) {
+                close();
+                setChunked(false);
+            }
+
+            this.content = content == null ? NO_CONTENT : content;
+            // always sent, persistent connections need it to find the end of the body
+            headers.put("Content-Length", Integer.toString(this.content.length));
+        }
+
+        public byte[] getContent() {
+            return content;
+        }
+
+        /**
+         * Streams the content instead of sending it from memory. The length
+         * is not known up front, so it is sent with chunked transfer encoding.
+         */
+        public void setBody(Body body) {
+            this.body = body;
+            content = NO_CONTENT;
+            headers.remove("Content-Length");
+            setChunked(true);
+        }
+
+        /**
+         * Streams content of a known length. It is sent with a
+         * {@code Content-Length}, so the connection can be kept alive.
+         */
+        public void setBody(Body body, long length) {
+            setBody(body);
+            setChunked(false);
+            headers.put("Content-Length", Long.toString(length));
+        }
+
+        public Body getBody() {
+            return body;
+        }
+
+        public boolean isStreamed() {
+            return body != null;
+        }
+
+        /**
+         * Chunked transfer encoding is HTTP/1.1 only. Without it, a streamed
+         * body ends when the connection is closed.
+         */
+        public void setChunked(boolean chunked) {
+            this.chunked = chunked;
+
+            if (chunked) {
+                headers.put("Transfer-Encoding", "chunked");
+            } else {
+                headers.remove("Transfer-Encoding");
+            }
+        }
+
+        public boolean isChunked() {
+            return chunked;
+        }
+
+        /**
+         * Releases a streamed body. Called once the response has been sent,
+         * or could not be.
+         */
+        public void close() {
+            if (body != null) {
+                try {
+                    body.close();
+                } catch (IOException ex) {
+                    Logger.getLogger(HTTPResponse.class.getName()).log(Level.WARNING, "Could not close response body", ex);
+                }
+                body = null;
+            }
         }
 
         public void setHeader(String name, Object value) {
@@ -231,25 +506,230 @@ public class HTTPHelpers {
         public String getHeader(String name) {
             return headers.getOrDefault(name, null);
         }
-        
-        public String getLines() {
 
-            StringBuilder response = new StringBuilder();
+        public void removeHeader(String name) {
+            headers.remove(name);
+        }
+
+        /**
+         * Copies the status, headers and content. The content bytes are
+         * shared, they are never modified in place.
+         *
+         * @throws IllegalStateException if the body is streamed
+         */
+        public HTTPResponse copy() {
+            if (body != null) {
+                throw new IllegalStateException("Streamed bodies can not be copied");
+            }
+
+            HTTPResponse copy = new HTTPResponse(status, reason, (String) null);
+            copy.headers.putAll(headers);
+            copy.content = content;
+
+            return copy;
+        }
+
+        /**
+         * Encodes the status line and headers. Header names and values are
+         * written as ISO-8859-1, as HTTP requires.
+         *
+         * @return the head, including the blank line which ends it
+         */
+        public ByteBuffer getHead() {
+            byte[] status_line = reason == null || reason.equals(status.name())
+                    ? status.getStatusLine() : HTTPStatusCode.encodeStatusLine(status, reason);
+
+            int length = status_line.length + CRLF.length;
+
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                length += header.getKey().length() + HEADER_SEPARATOR.length + header.getValue().length() + CRLF.length;
+            }
+
+            ByteBuffer head = ByteBuffer.allocate(length);
+
+            head.put(status_line);
+
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                byte[] name = HEADER_NAMES.get(header.getKey());
+
+                if (name != null) {
+                    head.put(name);
+                } else {
+                    putLatin1(head, header.getKey());
+                }
+
+                head.put(HEADER_SEPARATOR);
+                putLatin1(head, header.getValue());
+                head.put(CRLF);
+            }
+
+            head.put(CRLF);
+            head.flip();
+
+            return head;
+        }
+
+        /**
+         * @return the head and content, ready for a gathering write
+         * @throws IllegalStateException if the body is streamed
+         */
+        public ByteBuffer[] getBuffers() {
+            if (body != null) {
+                throw new IllegalStateException("Streamed bodies must be written with write");
+            }
+
+            return new ByteBuffer[]{getHead(), ByteBuffer.wrap(content)};
+        }
+
+        /**
+         * Writes the response with a single gathering write where the channel
+         * allows it. A streamed body is written after the head.
+         */
+        public void write(GatheringByteChannel channel) throws IOException {
+            if (body != null) {
+                ByteBuffer head = getHead();
+
+                while (head.hasRemaining()) {
+                    channel.write(head);
+                }
+
+                if (chunked) {
+                    writeBody(Channels.newOutputStream(channel));
+                } else {
+                    body.writeTo(channel);
+                }
+                return;
+            }
+
+            ByteBuffer[] buffers = getBuffers();
+
+            while (hasRemaining(buffers)) {
+                channel.write(buffers);
+            }
+        }
+
+        /**
+         * @return true until every buffer has been written, the content may be
+         * empty while the head is not
+         */
+        public static boolean hasRemaining(ByteBuffer[] buffers) {
+            for (ByteBuffer buffer : buffers) {
+                if (buffer.hasRemaining()) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * Writes the response to a stream, for sockets which were not opened
+         * from a channel.
+         */
+        public void write(OutputStream out) throws IOException {
+            ByteBuffer head = getHead();
+
+            out.write(head.array(), 0, head.limit());
+
+            if (body != null) {
+                writeBody(out);
+            } else {
+                out.write(content);
+            }
+
+            out.flush();
+        }
+
+        private void writeBody(OutputStream out) throws IOException {
+            if (chunked) {
+                ChunkedOutputStream chunks = new ChunkedOutputStream(out);
+                body.writeTo(chunks);
+                chunks.finish();
+            } else {
+                BufferedOutputStream buffered = new BufferedOutputStream(out, CHUNK_SIZE);
+                body.writeTo(buffered);
+                buffered.flush();
+            }
+
+            out.flush();
+        }
+
+        private static void putLatin1(ByteBuffer buffer, String value) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                buffer.put(c > 0xFF ? (byte) '?' : (byte) c);
+            }
+        }
+
+        /**
+         * Collects writes into chunks of up to {@link #CHUNK_SIZE} bytes.
+         * Flushing sends what has been collected so far as a chunk.
+         */
+        private static class ChunkedOutputStream extends OutputStream {
+
+            private final OutputStream out;
+
+            private final byte[] buffer = new byte[CHUNK_SIZE];
+            private int count;
+
+            public ChunkedOutputStream(OutputStream out) {
+                this.out = out;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                if (count == buffer.length) {
+                    writeChunk();
+                }
 
-            response.append("HTTP/1.1 ").append(status.getCode()).append(" ")
-                    .append(reason == null ? this.status.name() : reason).append("\r\n");
+                buffer[count++] = (byte) b;
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                while (length > 0) {
+                    if (count == buffer.length) {
+                        writeChunk();
+                    }
+
+                    int copied = Math.min(length, buffer.length - count);
+                    System.arraycopy(bytes, offset, buffer, count, copied);
+
+                    count += copied;
+                    offset += copied;
+                    length -= copied;
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                writeChunk();
+                out.flush();
+            }
+
+            /**
+             * Sends the last chunk and the empty one which ends the body. The
+             * underlying stream is left open for the next response.
+             */
+            public void finish() throws IOException {
+                writeChunk();
+                out.write(LAST_CHUNK);
+            }
 
-            headers.entrySet().forEach((header) -> {
-                response.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
-            });
+            private void writeChunk() throws IOException {
+                // an empty chunk would end the body
+                if (count == 0) {
+                    return;
+                }
 
-            response.append("\r\n");
+                out.write(Integer.toHexString(count).getBytes(StandardCharsets.ISO_8859_1));
+                out.write(CRLF);
+                out.write(buffer, 0, count);
+                out.write(CRLF);
 
-            if (content != null) {
-                response.append(content);
+                count = 0;
             }
 
-            return response.toString();
         }
 
     }
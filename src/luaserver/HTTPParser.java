@@ -0,0 +1,395 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package luaserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.TreeMap;
+import luaserver.HTTPHelpers.HTTPRequest;
+import luaserver.HTTPHelpers.HTTPStatusCode;
+import luaserver.ServerManager.InvalidHTTPException;
+
+/**
+ * Incremental HTTP/1.x request parser which works directly on bytes. Bytes
+ * can be fed in pieces of any size, the parser keeps its place between calls
+ * and only allocates the strings and content which end up in the request.
+ * One parser is kept per connection and reset after every request.
+ *
+ * @author azalac
+ */
+class HTTPParser {
+
+    public static final int DEFAULT_MAX_LINE = 8192;
+
+    public static final int DEFAULT_MAX_HEADERS = 65536;
+
+    public static final int DEFAULT_MAX_CONTENT = 1 << 20;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final byte[] NO_CONTENT = new byte[0];
+
+    private static final String[] METHODS = {
+        "GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS", "PATCH"
+    };
+
+    private static final String[] HEADERS = {
+        "Host", "Connection", "Content-Length", "Content-Type", "Accept",
+        "Accept-Encoding", "Accept-Language", "User-Agent", "Cookie",
+        "Authorization", "If-None-Match", "If-Modified-Since", "Range",
+        "Cache-Control", "Transfer-Encoding"
+    };
+
+    // characters allowed in a request target, the same set the old request line pattern accepted
+    private static final boolean[] TARGET_CHARS = new boolean[128];
+
+    static {
+        for (char c = '!'; c <= '~'; c++) {
+            TARGET_CHARS[c] = (c >= '#' && c <= ';') || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z')
+                    || c == '!' || c == '=' || c == '?' || c == '@' || c == '[' || c == ']' || c == '_' || c == '~';
+        }
+    }
+
+    private static enum State {
+        REQUEST_LINE, HEADERS, CONTENT
+    }
+
+    private final int max_line, max_headers, max_content;
+
+    private final int max_json_size, max_json_depth;
+
+    private State state = State.REQUEST_LINE;
+
+    // the line being read, kept between calls when a line is split across reads
+    private byte[] line = new byte[256];
+    private int line_length;
+
+    private int header_bytes;
+
+    private String method, target, version;
+    private TreeMap<String, String> headers;
+
+    private byte[] content;
+    private int content_read;
+
+    // read buffer used by next(InputStream), kept for the lifetime of the connection
+    private ByteBuffer buffer;
+
+    public HTTPParser() {
+        this(DEFAULT_MAX_LINE, DEFAULT_MAX_HEADERS, DEFAULT_MAX_CONTENT);
+    }
+
+    /**
+     * @param max_line the longest request line accepted, longer ones are
+     * answered with 414
+     * @param max_headers the most bytes of headers accepted, more are answered
+     * with 431
+     * @param max_content the largest Content-Length accepted, larger ones are
+     * answered with 413
+     */
+    public HTTPParser(int max_line, int max_headers, int max_content) {
+        this(max_line, max_headers, max_content, LuaJsonReader.DEFAULT_MAX_SIZE, LuaJsonReader.DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * @param max_json_size the most bytes of content scripts may decode as
+     * JSON
+     * @param max_json_depth the deepest nesting of JSON scripts may decode
+     * @see HTTPRequest#getJson()
+     */
+    public HTTPParser(int max_line, int max_headers, int max_content, int max_json_size, int max_json_depth) {
+        this.max_line = max_line;
+        this.max_headers = max_headers;
+        this.max_content = max_content;
+        this.max_json_size = max_json_size;
+        this.max_json_depth = max_json_depth;
+    }
+
+    /**
+     * @return true if no part of a request has been read since the last one
+     * finished
+     */
+    public boolean isIdle() {
+        return state == State.REQUEST_LINE && line_length == 0;
+    }
+
+    /**
+     * Reads the next request from a blocking stream. Bytes read past the end
+     * of the request are kept for the next call.
+     *
+     * @return the request, or null if the stream ended between requests
+     */
+    public HTTPRequest next(InputStream in) throws IOException, InvalidHTTPException {
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            buffer.flip();
+        }
+
+        HTTPRequest request;
+
+        while ((request = parse(buffer)) == null) {
+            buffer.clear();
+
+            int read = in.read(buffer.array(), 0, buffer.capacity());
+
+            if (read == -1) {
+                if (isIdle()) {
+                    return null;
+                }
+
+                throw new InvalidHTTPException(HTTPStatusCode.BAD_REQUEST, "Connection closed during request");
+            }
+
+            buffer.limit(read);
+        }
+
+        return request;
+    }
+
+    /**
+     * Consumes bytes from the buffer until a request is complete or the buffer
+     * is empty. Bytes after the end of a complete request are left in the
+     * buffer.
+     *
+     * @return the request, or null if more bytes are needed
+     */
+    public HTTPRequest parse(ByteBuffer input) throws InvalidHTTPException {
+        while (input.hasRemaining()) {
+            if (state == State.CONTENT) {
+                int count = Math.min(input.remaining(), content.length - content_read);
+                input.get(content, content_read, count);
+                content_read += count;
+            } else if (readLine(input)) {
+                if (state == State.REQUEST_LINE) {
+                    // blank lines before a request line are ignored
+                    if (line_length > 0) {
+                        parseRequestLine();
+                        state = State.HEADERS;
+                    }
+                } else if (line_length > 0) {
+                    parseHeaderLine();
+                } else {
+                    startContent();
+                }
+
+                line_length = 0;
+            }
+
+            if (state == State.CONTENT && content_read == content.length) {
+                return finish();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Copies bytes up to the next line feed into the line buffer.
+     *
+     * @return true if a whole line has been read, without its line ending
+     */
+    private boolean readLine(ByteBuffer input) throws InvalidHTTPException {
+        while (input.hasRemaining()) {
+            byte b = input.get();
+
+            if (state == State.HEADERS && ++header_bytes > max_headers) {
+                throw new InvalidHTTPException(HTTPStatusCode.REQUEST_HEADER_FIELDS_TOO_LARGE, "Request headers are too large");
+            }
+
+            if (b == '\n') {
+                if (line_length > 0 && line[line_length - 1] == '\r') {
+                    line_length--;
+                }
+                return true;
+            }
+
+            if (state == State.REQUEST_LINE && line_length == max_line) {
+                throw new InvalidHTTPException(HTTPStatusCode.REQUEST_URI_TOO_LONG, "Request line is too long");
+            }
+
+            if (line_length == line.length) {
+                line = Arrays.copyOf(line, line.length * 2);
+            }
+
+            line[line_length++] = b;
+        }
+
+        return false;
+    }
+
+    private void parseRequestLine() throws InvalidHTTPException {
+        int first = indexOf(line, (byte) ' ', 0, line_length);
+        int second = first == -1 ? -1 : indexOf(line, (byte) ' ', first + 1, line_length);
+
+        if (second == -1 || !isToken(0, first) || !isTarget(first + 1, second) || !isVersion(second + 1, line_length)) {
+            throw new InvalidHTTPException(HTTPStatusCode.BAD_REQUEST, "Invalid HTTP Request Line");
+        }
+
+        method = known(METHODS, 0, first, false);
+        target = new String(line, first + 1, second - first - 1, StandardCharsets.ISO_8859_1);
+        version = new String(line, second + 1, line_length - second - 1, StandardCharsets.ISO_8859_1);
+
+        headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        header_bytes = 0;
+    }
+
+    private void parseHeaderLine() throws InvalidHTTPException {
+        int colon = indexOf(line, (byte) ':', 0, line_length);
+
+        // no colon, but line is not CRLF, invalid line
+        if (colon <= 0) {
+            throw new InvalidHTTPException(HTTPStatusCode.BAD_REQUEST, "Invalid header line '"
+                    + new String(line, 0, line_length, StandardCharsets.ISO_8859_1) + "', must contain colon");
+        }
+
+        int name_end = colon;
+        while (name_end > 0 && isSpace(line[name_end - 1])) {
+            name_end--;
+        }
+
+        int value_start = colon + 1, value_end = line_length;
+        while (value_start < value_end && isSpace(line[value_start])) {
+            value_start++;
+        }
+        while (value_end > value_start && isSpace(line[value_end - 1])) {
+            value_end--;
+        }
+
+        headers.put(known(HEADERS, 0, name_end, true),
+                new String(line, value_start, value_end - value_start, StandardCharsets.ISO_8859_1));
+    }
+
+    private void startContent() throws InvalidHTTPException {
+        if (headers.containsKey("Transfer-Encoding")) {
+            throw new InvalidHTTPException(HTTPStatusCode.NOT_IMPLEMENTED, "Transfer-Encoding is not supported for requests");
+        }
+
+        int length = 0;
+        String header = headers.get("Content-Length");
+
+        if (header != null) {
+            try {
+                length = Integer.parseInt(header);
+            } catch (NumberFormatException ex) {
+                length = -1;
+            }
+
+            if (length < 0) {
+                throw new InvalidHTTPException(HTTPStatusCode.BAD_REQUEST, "Invalid Content-Length");
+            }
+
+            if (length > max_content) {
+                throw new InvalidHTTPException(HTTPStatusCode.PAYLOAD_TOO_LARGE, "Content is too large");
+            }
+        }
+
+        content = length == 0 ? NO_CONTENT : new byte[length];
+        content_read = 0;
+        state = State.CONTENT;
+    }
+
+    private HTTPRequest finish() {
+        HTTPRequest request = new HTTPRequest(method, target, version, headers, content);
+        request.setJsonLimits(max_json_size, max_json_depth);
+
+        state = State.REQUEST_LINE;
+        method = target = version = null;
+        headers = null;
+        content = null;
+
+        return request;
+    }
+
+    /**
+     * Finds a well-known string equal to the bytes in the line, so common
+     * methods and header names do not need a new string per request.
+     */
+    private String known(String[] strings, int from, int to, boolean ignore_case) {
+        for (String known : strings) {
+            if (known.length() == to - from && matches(known, from, ignore_case)) {
+                return known;
+            }
+        }
+
+        return new String(line, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    private boolean matches(String known, int from, boolean ignore_case) {
+        for (int i = 0; i < known.length(); i++) {
+            int a = known.charAt(i), b = line[from + i] & 0xFF;
+
+            if (a != b && !(ignore_case && Character.toLowerCase(a) == Character.toLowerCase(b))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean isToken(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (!isWord(line[i])) {
+                return false;
+            }
+        }
+
+        return to > from;
+    }
+
+    private boolean isTarget(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (line[i] < 0 || !TARGET_CHARS[line[i]]) {
+                return false;
+            }
+        }
+
+        return to > from;
+    }
+
+    // \w+/\d+\.\d+
+    private boolean isVersion(int from, int to) {
+        int slash = indexOf(line, (byte) '/', from, to);
+        int dot = slash == -1 ? -1 : indexOf(line, (byte) '.', slash + 1, to);
+
+        if (dot == -1 || !isToken(from, slash)) {
+            return false;
+        }
+
+        return isDigits(slash + 1, dot) && isDigits(dot + 1, to);
+    }
+
+    private boolean isDigits(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (line[i] < '0' || line[i] > '9') {
+                return false;
+            }
+        }
+
+        return to > from;
+    }
+
+    private static boolean isWord(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '_';
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static int indexOf(byte[] data, byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+}
@@ -5,27 +5,41 @@
  */
 package luaserver;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonNull;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonPrimitive;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import luaserver.HTTPHelpers.HTTPRequest;
 import luaserver.HTTPHelpers.HTTPResponse;
 import luaserver.HTTPHelpers.HTTPStatusCode;
-import luaserver.ServerManager.EndpointRedirectException;
 import org.luaj.vm2.LuaError;
 import org.luaj.vm2.LuaFunction;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.lib.jse.CoerceJavaToLua;
-import org.luaj.vm2.lib.jse.CoerceLuaToJava;
 
 /**
  *
@@ -37,13 +51,34 @@ public interface LuaEndpoint {
 
     public HTTPResponse HandleRequest(HTTPRequest request);
 
+    /**
+     * Runs a lua function for each request. A script declares either a
+     * single {@code handler}, or a {@code handlers} table keyed by HTTP method
+     * ({@code GET}, {@code POST}, ...) or by the value of the
+     * {@code operation} query parameter. Operations are looked up first, then
+     * methods, then the single handler.
+     * <p>
+     * A request nothing handles gets a 405 with {@code Allow} when the script
+     * has method handlers, since the method is what they did not match, and
+     * a 404 otherwise.
+     */
     static class LuaScriptEndpoint implements LuaEndpoint {
 
+        private static final Set<String> METHODS = new HashSet<>(Arrays.asList(
+                "GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS", "PATCH"));
+
         private String name;
         private String MimeType = "application/json";
 
         private final HashMap<String, LuaFunction> operations = new HashMap<>();
 
+        private final HashMap<String, LuaFunction> methods = new HashMap<>();
+
+        private final ResponseCache.Policy cache;
+
+        // the length of the last response, only a guess so races do not matter
+        private int size_hint = 256;
+
         public LuaScriptEndpoint(LuaTable endpoint) {
             LuaValue lname = endpoint.get("name");
 
@@ -69,12 +104,20 @@ public interface LuaEndpoint {
             } else if (handlers.istable()) {
                 LuaTable table = handlers.checktable();
                 for (LuaValue key : table.keys()) {
-                    operations.put(key.tojstring(), table.get(key).checkfunction());
+                    String handler_name = key.tojstring();
+
+                    if (METHODS.contains(handler_name)) {
+                        methods.put(handler_name, table.get(key).checkfunction());
+                    } else {
+                        operations.put(handler_name, table.get(key).checkfunction());
+                    }
                 }
             } else {
                 throw new IllegalArgumentException(name + ": handler or handlers must be declared for scripts");
             }
 
+            cache = ResponseCache.Policy.fromLua(name, endpoint.get("cache"));
+
         }
 
         @Override
@@ -82,12 +125,37 @@ public interface LuaEndpoint {
             return name;
         }
 
+        /**
+         * @return how responses may be cached, or null if they may not
+         */
+        public ResponseCache.Policy getCachePolicy() {
+            return cache;
+        }
+
         @Override
         public HTTPResponse HandleRequest(HTTPRequest request) {
-            LuaFunction fn = operations.get(request.getQueryValue("operation"));
+            String operation = request.getQueryValue("operation");
+
+            LuaFunction fn = operation == null ? null : operations.get(operation);
+
+            if (fn == null) {
+                fn = methods.get(request.getMethod());
+            }
 
             if (fn == null) {
-                return new HTTPResponse(HTTPStatusCode.UNAUTHORIZED, "Could not find operation '" + request.getQueryValue("operation") + "'");
+                fn = operations.get(null);
+            }
+
+            if (fn == null && !methods.isEmpty()) {
+                HTTPResponse response = new HTTPResponse(HTTPStatusCode.METHOD_NOT_ALLOWED,
+                        name + " does not handle " + request.getMethod());
+                response.setHeader("Allow", String.join(", ", methods.keySet()));
+                return response;
+            }
+
+            if (fn == null) {
+                return new HTTPResponse(HTTPStatusCode.NOT_FOUND, operation == null
+                        ? name + " needs an operation" : "Could not find operation '" + operation + "'");
             }
 
             LuaValue[] args = new LuaValue[]{
@@ -98,6 +166,11 @@ public interface LuaEndpoint {
             try {
                 ret = fn.invoke(args).arg1();
             } catch (LuaError er) {
+                // luaj wraps exceptions thrown by java methods the script called
+                if (er.getCause() instanceof LuaJsonReader.InvalidJsonException) {
+                    return new HTTPResponse(HTTPStatusCode.BAD_REQUEST, er.getCause().getMessage());
+                }
+
                 Logger.getLogger(LuaEndpoint.class.toString()).log(Level.SEVERE, "Error during lua execution", er);
                 return new HTTPResponse(HTTPStatusCode.INTERNAL_SERVER_ERROR, "Could not execute script");
             }
@@ -124,10 +197,25 @@ public interface LuaEndpoint {
                 }
             }
 
-            if (!content.isnil()) {
-                JsonElement json = LuaToJson(content);
+            if (content.isuserdata(DatabaseWrapper.RowStream.class)) {
+                DatabaseWrapper.RowStream rows = (DatabaseWrapper.RowStream) content.touserdata(DatabaseWrapper.RowStream.class);
+
+                rows.attach();
+                response.setBody(rows);
+            } else if (!content.isnil()) {
+                LuaJsonWriter json = new LuaJsonWriter(size_hint);
+
+                try {
+                    json.write(content);
+                } catch (LuaError er) {
+                    Logger.getLogger(LuaEndpoint.class.toString()).log(Level.SEVERE, "Could not write response as JSON", er);
+                    return new HTTPResponse(HTTPStatusCode.INTERNAL_SERVER_ERROR, "Could not execute script");
+                }
+
+                // responses of one endpoint tend to be alike, so the next one starts with room for this one
+                size_hint = json.size();
 
-                response.setContent(json.toString());
+                response.setContent(json.toByteArray());
             }
 
             // no mime-type specified by script, set it to the default
@@ -140,14 +228,87 @@ public interface LuaEndpoint {
 
     }
 
+    /**
+     * Serves a file. Files up to {@link #CACHED_SIZE} bytes are kept in
+     * memory, larger ones are sent straight from the file system with
+     * {@link FileChannel#transferTo}. Either way the file is checked on every
+     * request and reread once its modification time or size changes.
+     * <p>
+     * Responses carry {@code Last-Modified} and {@code ETag} so clients can
+     * revalidate with {@code If-Modified-Since} or {@code If-None-Match}, and a
+     * single byte range may be asked for with {@code Range}.
+     * <p>
+     * Clients which accept gzip are sent the file's {@code .gz} sibling when
+     * there is one at least as new as the file. Otherwise files kept in memory
+     * are compressed once, the first time they are asked for, with the
+     * server's compression settings. Nothing is compressed when compression is
+     * turned off.
+     */
     static class ResourceEndpoint implements LuaEndpoint {
 
+        private static final int CACHED_SIZE = 256 * 1024;
+
+        private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter
+                .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+        // a range which lies past the end of the file
+        private static final long[] UNSATISFIABLE = new long[0];
+
         private String name;
         private String MimeType = "application/text";
 
-        private Path file;
+        private Path file, compressed_file;
+
+        // null when compression is turned off
+        private final ResponseCompressor compressor;
+
+        /**
+         * What a file looked like when it was last read, never modified apart
+         * from its compressed copy.
+         */
+        private static class Snapshot {
+
+            private final Path path;
+
+            private final FileTime modified;
+            private final long size;
+
+            private final String etag;
+            private final String last_modified;
+
+            // null if the file is too large to keep
+            private final byte[] data;
+
+            // made the first time a client accepts it
+            private volatile Snapshot gzip;
+
+            private Snapshot(Path path, FileTime modified, long size, byte[] data, String etag) {
+                this.path = path;
+                this.modified = modified;
+                this.size = size;
+                this.data = data;
+                this.etag = etag;
+
+                last_modified = HTTP_DATE.format(modified.toInstant());
+            }
+
+            private Snapshot(Path path, FileTime modified, long size, byte[] data) {
+                this(path, modified, size, data,
+                        "\"" + Long.toHexString(size) + "-" + Long.toHexString(modified.toMillis()) + "\"");
+            }
+
+        }
+
+        // shared by every thread serving the file
+        private volatile Snapshot snapshot, precompressed;
+
+        /**
+         * @param compressor the server's compression settings, or null to
+         * always send files as they are
+         */
+        public ResourceEndpoint(LuaTable endpoint, ResponseCompressor compressor) {
+            this.compressor = compressor;
 
-        public ResourceEndpoint(LuaTable endpoint) {
             LuaValue lname = endpoint.get("name");
 
             if (lname.isstring()) {
@@ -168,6 +329,7 @@ public interface LuaEndpoint {
 
             if (lpath.isstring()) {
                 file = Paths.get(lpath.tojstring());
+                compressed_file = Paths.get(lpath.tojstring() + ".gz");
             } else {
                 throw new IllegalArgumentException(name + ": Resource path must be a string");
             }
@@ -185,26 +347,289 @@ public interface LuaEndpoint {
             }
 
             try {
-                byte[] data = Files.readAllBytes(file);
+                Snapshot current = snapshot = load(file, snapshot), sent = current;
+
+                boolean compressible = compressor != null && ResponseCompressor.isCompressible(MimeType);
 
-                HTTPResponse response = new HTTPResponse(HTTPStatusCode.OK, new String(data));
+                // ranges are always taken from the file as it is
+                if (compressible && request.getHeader("Range") == null
+                        && ResponseCompressor.negotiate(request.getHeader("Accept-Encoding"), "gzip") != null) {
+                    Snapshot compressed = getCompressed(current);
+
+                    if (compressed != null) {
+                        sent = compressed;
+                    }
+                }
+
+                if (isNotModified(request, sent.etag, current)) {
+                    HTTPResponse response = ResponseCache.notModified(sent.etag);
+                    response.setHeader("Last-Modified", current.last_modified);
+
+                    if (compressible) {
+                        ResponseCompressor.addVary(response);
+                    }
+
+                    return response;
+                }
+
+                long[] range = getRange(request, current);
+
+                if (range == UNSATISFIABLE) {
+                    HTTPResponse response = new HTTPResponse(HTTPStatusCode.REQUESTED_RANGE_NOT_SATISFIABLE);
+                    response.setHeader("Content-Range", "bytes */" + current.size);
+                    return response;
+                }
+
+                long start = range == null ? 0 : range[0],
+                        length = range == null ? sent.size : range[1] - range[0] + 1;
+
+                HTTPResponse response = new HTTPResponse(range == null ? HTTPStatusCode.OK : HTTPStatusCode.PARTIAL_CONTENT);
+
+                if (sent.data == null) {
+                    response.setBody(new FileBody(FileChannel.open(sent.path, StandardOpenOption.READ), start, length), length);
+                } else if (range == null) {
+                    response.setContent(sent.data);
+                } else {
+                    response.setContent(Arrays.copyOfRange(sent.data, (int) start, (int) (start + length)));
+                }
+
+                if (range != null) {
+                    response.setHeader("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + current.size);
+                }
 
                 response.setHeader("Content-Type", MimeType);
+                response.setHeader("ETag", sent.etag);
+                response.setHeader("Last-Modified", current.last_modified);
+                response.setHeader("Accept-Ranges", "bytes");
+
+                if (sent != current) {
+                    response.setHeader("Content-Encoding", "gzip");
+                }
+
+                if (compressible) {
+                    ResponseCompressor.addVary(response);
+                }
 
                 return response;
+            } catch (NoSuchFileException ex) {
+                return new HTTPResponse(HTTPStatusCode.NOT_FOUND, "Resource does not exist");
             } catch (IOException ex) {
                 return new HTTPResponse(HTTPStatusCode.INTERNAL_SERVER_ERROR, "IOException while getting resource");
             }
         }
 
+        /**
+         * @return the previous snapshot if the file has not changed since,
+         * otherwise a new one
+         */
+        private static Snapshot load(Path path, Snapshot previous) throws IOException {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+
+            if (previous != null && previous.modified.equals(attributes.lastModifiedTime())
+                    && previous.size == attributes.size()) {
+                return previous;
+            }
+
+            // two threads may both reread a changed file, either result is correct
+            if (attributes.size() <= CACHED_SIZE) {
+                byte[] data = Files.readAllBytes(path);
+                return new Snapshot(path, attributes.lastModifiedTime(), data.length, data);
+            } else {
+                return new Snapshot(path, attributes.lastModifiedTime(), attributes.size(), null);
+            }
+        }
+
+        /**
+         * @return the gzipped file, or null if it is not worth sending
+         */
+        private Snapshot getCompressed(Snapshot current) throws IOException {
+            try {
+                Snapshot sibling = precompressed = load(compressed_file, precompressed);
+
+                // an older sibling was left behind when the file was edited
+                if (sibling.modified.compareTo(current.modified) >= 0) {
+                    return sibling;
+                }
+            } catch (NoSuchFileException ex) {
+                precompressed = null;
+            }
+
+            if (current.data == null || current.size < compressor.getMinSize()) {
+                return null;
+            }
+
+            Snapshot gzip = current.gzip;
+
+            if (gzip == null) {
+                byte[] data = ResponseCompressor.compress(current.data, "gzip", compressor.getLevel());
+
+                gzip = current.gzip = new Snapshot(null, current.modified, data.length, data,
+                        current.etag.substring(0, current.etag.length() - 1) + "-gzip\"");
+            }
+
+            return gzip.size < current.size ? gzip : null;
+        }
+
+        /**
+         * If-None-Match wins over If-Modified-Since when both are sent.
+         */
+        private static boolean isNotModified(HTTPRequest request, String etag, Snapshot current) {
+            if (request.getHeader("If-None-Match") != null) {
+                return ResponseCache.matches(request, etag);
+            }
+
+            String since = request.getHeader("If-Modified-Since");
+
+            if (since == null) {
+                return false;
+            }
+
+            try {
+                long seconds = ZonedDateTime.parse(since, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+
+                // dates only have whole seconds
+                return current.modified.to(TimeUnit.SECONDS) <= seconds;
+            } catch (DateTimeParseException ex) {
+                return false;
+            }
+        }
+
+        /**
+         * Reads a single range of the forms {@code bytes=first-last},
+         * {@code bytes=first-} and {@code bytes=-suffix}. Several ranges, and
+         * ranges which can not be read, are answered with the whole file.
+         *
+         * @return the first and last byte, null for the whole file, or
+         * {@link #UNSATISFIABLE}
+         */
+        private static long[] getRange(HTTPRequest request, Snapshot current) {
+            String header = request.getHeader("Range");
+
+            if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+                return null;
+            }
+
+            // the client only wants part of the version it already has
+            String condition = request.getHeader("If-Range");
+
+            if (condition != null && !condition.equals(current.etag) && !condition.equals(current.last_modified)) {
+                return null;
+            }
+
+            String spec = header.substring("bytes=".length()).trim();
+            int dash = spec.indexOf('-');
+
+            if (dash < 0) {
+                return null;
+            }
+
+            try {
+                String first = spec.substring(0, dash).trim(),
+                        last = spec.substring(dash + 1).trim();
+
+                if (first.isEmpty()) {
+                    long suffix = Long.parseLong(last);
+
+                    if (suffix <= 0 || current.size == 0) {
+                        return UNSATISFIABLE;
+                    }
+
+                    return new long[]{Math.max(0, current.size - suffix), current.size - 1};
+                }
+
+                long start = Long.parseLong(first);
+
+                if (start >= current.size) {
+                    return UNSATISFIABLE;
+                }
+
+                long end = last.isEmpty() ? current.size - 1 : Math.min(Long.parseLong(last), current.size - 1);
+
+                return start < 0 || end < start ? null : new long[]{start, end};
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+
+        /**
+         * Part of a file, handed to the client's channel by the kernel where
+         * it can.
+         */
+        private static class FileBody implements HTTPResponse.TransferableBody {
+
+            private final FileChannel channel;
+            private final long start, length;
+
+            public FileBody(FileChannel channel, long start, long length) {
+                this.channel = channel;
+                this.start = start;
+                this.length = length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                writeTo(Channels.newChannel(out));
+            }
+
+            @Override
+            public void writeTo(WritableByteChannel target) throws IOException {
+                long position = start, end = start + length;
+
+                while (position < end) {
+                    long sent = channel.transferTo(position, end - position, target);
+
+                    // the file was truncated after its length was sent
+                    if (sent == 0 && position >= channel.size()) {
+                        throw new IOException("Resource changed while being sent");
+                    }
+
+                    position += sent;
+                }
+            }
+
+            @Override
+            public long transferTo(long offset, WritableByteChannel target) throws IOException {
+                long sent = channel.transferTo(start + offset, length - offset, target);
+
+                if (sent == 0 && start + offset >= channel.size()) {
+                    throw new IOException("Resource changed while being sent");
+                }
+
+                return sent;
+            }
+
+            @Override
+            public long getLength() {
+                return length;
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+
+        }
+
     }
 
+    /**
+     * Another name for an endpoint. Aliases are resolved once every endpoint
+     * has loaded: chains of aliases are followed to the endpoint at their end,
+     * and their request mutators are collected in order. A request then runs
+     * the mutators and goes straight to that endpoint.
+     */
     static class AliasEndpoint implements LuaEndpoint {
 
+        private static final LuaFunction[] NO_MUTATORS = new LuaFunction[0];
+
         private final String name, redirect_name;
 
         private LuaFunction inputmutator;
 
+        // set once resolved
+        private final LuaEndpoint target;
+        private final LuaFunction[] mutators;
+
         public AliasEndpoint(LuaTable endpoint) {
             LuaValue lname = endpoint.get("name");
 
@@ -230,6 +655,27 @@ public interface LuaEndpoint {
                 throw new IllegalArgumentException(name + ": Request Mutator must be a function or nil");
             }
 
+            target = null;
+            mutators = NO_MUTATORS;
+        }
+
+        /**
+         * A resolved alias without mutators.
+         */
+        public AliasEndpoint(String name, LuaEndpoint target) {
+            this(name, target, NO_MUTATORS);
+        }
+
+        /**
+         * A resolved alias.
+         *
+         * @param mutators run in order before the target handles a request
+         */
+        public AliasEndpoint(String name, LuaEndpoint target, LuaFunction[] mutators) {
+            this.name = name;
+            this.redirect_name = target.getResourceName();
+            this.target = target;
+            this.mutators = mutators;
         }
 
         @Override
@@ -237,23 +683,108 @@ public interface LuaEndpoint {
             return name;
         }
 
+        public LuaEndpoint getTarget() {
+            return target;
+        }
+
+        /**
+         * @return true if requests must run lua before reaching the target
+         */
+        public boolean hasMutators() {
+            return mutators.length > 0;
+        }
+
         @Override
         public HTTPResponse HandleRequest(HTTPRequest request) {
-            HTTPRequest redirect = new HTTPRequest(request.getMethod(),
-                    this.redirect_name + "?" + request.getQueryString(),
-                    request.getVersion(), new HashMap<>(request.getHeaders()),
-                    request.getContent());
+            if (target == null) {
+                throw new IllegalStateException(name + ": alias was never resolved");
+            }
 
-            if (inputmutator != null && !inputmutator.isnil()) {
-                redirect = (HTTPRequest) CoerceLuaToJava.coerce(inputmutator.call(CoerceJavaToLua.coerce(redirect)), HTTPRequest.class);
+            for (LuaFunction mutator : mutators) {
+                LuaValue result;
+
+                try {
+                    result = mutator.call(CoerceJavaToLua.coerce(request));
+                } catch (LuaError er) {
+                    Logger.getLogger(LuaEndpoint.class.toString()).log(Level.SEVERE, "Error during lua execution", er);
+                    return new HTTPResponse(HTTPStatusCode.INTERNAL_SERVER_ERROR, "Could not execute script");
+                }
+
+                // mutators may return a replacement request, anything else keeps the current one
+                if (result.isuserdata(HTTPRequest.class)) {
+                    request = (HTTPRequest) result.touserdata(HTTPRequest.class);
+                }
             }
 
-            throw new EndpointRedirectException(redirect);
+            return target.HandleRequest(request);
+        }
+
+        /**
+         * Replaces every alias with one pointing at the endpoint at the end of
+         * its chain. Aliases which lead to a missing endpoint or back to
+         * themselves are logged and removed.
+         *
+         * @param endpoints every loaded endpoint, by name
+         */
+        public static void resolve(Map<String, LuaEndpoint> endpoints) {
+            HashMap<String, LuaEndpoint> resolved = new HashMap<>();
+
+            for (LuaEndpoint endpoint : endpoints.values()) {
+                if (!(endpoint instanceof AliasEndpoint)) {
+                    continue;
+                }
+
+                LinkedHashSet<String> chain = new LinkedHashSet<>();
+                ArrayList<LuaFunction> found = new ArrayList<>();
+
+                LuaEndpoint current = endpoint;
+
+                while (current instanceof AliasEndpoint) {
+                    AliasEndpoint alias = (AliasEndpoint) current;
+
+                    if (!chain.add(alias.name)) {
+                        Logger.getLogger(LuaEndpoint.class.toString()).log(Level.SEVERE, "Alias {0} is part of a cycle: {1}",
+                                new Object[]{endpoint.getResourceName(), String.join(" -> ", chain) + " -> " + alias.name});
+                        current = null;
+                        break;
+                    }
+
+                    if (alias.inputmutator != null) {
+                        found.add(alias.inputmutator);
+                    }
+
+                    current = endpoints.get(alias.redirect_name);
+
+                    if (current == null) {
+                        Logger.getLogger(LuaEndpoint.class.toString()).log(Level.SEVERE, "Alias {0} leads to unknown endpoint {1}",
+                                new Object[]{endpoint.getResourceName(), alias.redirect_name});
+                    }
+                }
+
+                resolved.put(endpoint.getResourceName(), current == null ? null
+                        : new AliasEndpoint(endpoint.getResourceName(), current, found.toArray(NO_MUTATORS)));
+            }
+
+            for (Map.Entry<String, LuaEndpoint> alias : resolved.entrySet()) {
+                if (alias.getValue() == null) {
+                    endpoints.remove(alias.getKey());
+                } else {
+                    endpoints.put(alias.getKey(), alias.getValue());
+                }
+            }
         }
 
     }
 
     public static LuaEndpoint LoadEndpoint(LuaTable endpoint) {
+        return LoadEndpoint(endpoint, null);
+    }
+
+    /**
+     * @param compressor the server's compression settings for resources, or
+     * null to send them as they are
+     */
+    public static LuaEndpoint LoadEndpoint(LuaTable endpoint, ResponseCompressor compressor) {
         LuaValue type = endpoint.get("type");
 
         if (type.isstring()) {
@@ -261,7 +792,7 @@ public interface LuaEndpoint {
                 case "script":
                     return new LuaScriptEndpoint(endpoint);
                 case "resource":
-                    return new ResourceEndpoint(endpoint);
+                    return new ResourceEndpoint(endpoint, compressor);
                 case "alias":
                     return new AliasEndpoint(endpoint);
                 default:
@@ -271,34 +802,12 @@ public interface LuaEndpoint {
         return null;
     }
 
-    public static JsonElement LuaToJson(LuaValue value) {
-        switch (value.type()) {
-            case LuaValue.TNONE:
-            case LuaValue.TNIL:
-            case LuaValue.TUSERDATA:
-            case LuaValue.TLIGHTUSERDATA:
-            case LuaValue.TTHREAD:
-            case LuaValue.TFUNCTION:
-                return JsonNull.INSTANCE;
-            case LuaValue.TBOOLEAN:
-                return new JsonPrimitive(value.checkboolean());
-            case LuaValue.TINT:
-                return new JsonPrimitive(value.checklong());
-            case LuaValue.TNUMBER:
-                return new JsonPrimitive(value.checkdouble());
-            case LuaValue.TSTRING:
-                return new JsonPrimitive(value.checkjstring());
-            case LuaValue.TTABLE: {
-                JsonObject object = new JsonObject();
-                LuaTable tbl = value.checktable();
-                for (LuaValue key : tbl.keys()) {
-                    object.add(key.tojstring(), LuaToJson(tbl.get(key)));
-                }
-                return object;
-            }
-        }
-
-        throw new AssertionError("Unknown lua value type " + value.typename());
+    /**
+     * @return the value as UTF-8 JSON
+     * @see LuaJsonWriter
+     */
+    public static byte[] LuaToJson(LuaValue value) {
+        return LuaJsonWriter.toJson(value);
     }
 
 }
@@ -0,0 +1,149 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package luaserver;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+
+/**
+ * Decodes JSON into lua values while reading it, without building a tree
+ * first. Objects and arrays become tables, arrays indexed from 1, and null
+ * becomes nil, so null array elements leave holes.
+ *
+ * @author azalac
+ */
+public class LuaJsonReader {
+
+    public static final int DEFAULT_MAX_SIZE = 1 << 20;
+
+    public static final int DEFAULT_MAX_DEPTH = 64;
+
+    /**
+     * Thrown when content is not valid JSON or is over a limit. Unchecked so
+     * it reaches the endpoint through the lua calls it passes.
+     */
+    public static class InvalidJsonException extends IllegalArgumentException {
+
+        private static final long serialVersionUID = 1L;
+
+        public InvalidJsonException(String message) {
+            super(message);
+        }
+
+        public InvalidJsonException(String message, Throwable cause) {
+            super(message, cause);
+        }
+
+    }
+
+    private final JsonReader reader;
+    private final int max_depth;
+
+    private LuaJsonReader(JsonReader reader, int max_depth) {
+        this.reader = reader;
+        this.max_depth = max_depth;
+    }
+
+    /**
+     * @param content UTF-8 JSON holding a single value
+     * @param max_depth the deepest nesting of objects and arrays accepted
+     * @return the value
+     * @throws InvalidJsonException if the content is not valid JSON or is
+     * nested too deeply
+     */
+    public static LuaValue read(byte[] content, int max_depth) {
+        JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(content), StandardCharsets.UTF_8));
+
+        try {
+            LuaValue value = new LuaJsonReader(reader, max_depth).readValue(0);
+
+            if (reader.peek() != JsonToken.END_DOCUMENT) {
+                throw new InvalidJsonException("Unexpected content after the JSON value");
+            }
+
+            return value;
+        } catch (IOException | IllegalStateException | NumberFormatException ex) {
+            // gson reports syntax errors as IOExceptions, and wrong tokens as IllegalStateExceptions
+            String message = String.valueOf(ex.getMessage());
+            int line = message.indexOf('\n');
+
+            // later lines point to gson's troubleshooting guide, which means nothing to clients
+            throw new InvalidJsonException("Invalid JSON: " + (line < 0 ? message : message.substring(0, line)), ex);
+        }
+    }
+
+    private LuaValue readValue(int depth) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT: {
+                checkDepth(depth);
+
+                LuaTable table = new LuaTable();
+
+                reader.beginObject();
+
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    table.rawset(LuaValue.valueOf(name), readValue(depth + 1));
+                }
+
+                reader.endObject();
+                return table;
+            }
+            case BEGIN_ARRAY: {
+                checkDepth(depth);
+
+                LuaTable table = new LuaTable();
+                int index = 1;
+
+                reader.beginArray();
+
+                while (reader.hasNext()) {
+                    table.rawset(index++, readValue(depth + 1));
+                }
+
+                reader.endArray();
+                return table;
+            }
+            case STRING:
+                return LuaValue.valueOf(reader.nextString());
+            case NUMBER:
+                return readNumber(reader.nextString());
+            case BOOLEAN:
+                return LuaValue.valueOf(reader.nextBoolean());
+            case NULL:
+                reader.nextNull();
+                return LuaValue.NIL;
+            default:
+                throw new InvalidJsonException("Unexpected " + reader.peek() + " at " + reader.getPath());
+        }
+    }
+
+    private void checkDepth(int depth) {
+        if (depth >= max_depth) {
+            throw new InvalidJsonException("JSON is nested deeper than " + max_depth + " levels");
+        }
+    }
+
+    private static LuaValue readNumber(String number) {
+        // integers stay integers in lua, as long as they fit
+        if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0 && number.length() < 11) {
+            long value = Long.parseLong(number);
+
+            if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                return LuaValue.valueOf((int) value);
+            }
+        }
+
+        return LuaValue.valueOf(Double.parseDouble(number));
+    }
+
+}
@@ -0,0 +1,248 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package luaserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+
+/**
+ * Writes lua values as UTF-8 JSON straight into a byte array, without
+ * building an intermediate tree or string.
+ * <p>
+ * Tables whose keys are exactly 1 to n become arrays, every other table an
+ * object with its keys as strings. Lua strings are copied byte for byte, so
+ * scripts are expected to hold UTF-8 text in them. Functions, userdata and
+ * threads become null, and so do numbers JSON can not represent.
+ *
+ * @author azalac
+ */
+public class LuaJsonWriter {
+
+    // deeper tables are almost certainly a mistake, and would overflow the stack
+    private static final int MAX_DEPTH = 256;
+
+    private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+    private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+    private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.ISO_8859_1);
+
+    private byte[] buffer;
+    private int count;
+
+    // the tables being written, from the outermost in
+    private final IdentityHashMap<LuaTable, Boolean> path = new IdentityHashMap<>();
+
+    /**
+     * @param capacity the expected length of the JSON, in bytes
+     */
+    public LuaJsonWriter(int capacity) {
+        buffer = new byte[Math.max(capacity, 16)];
+    }
+
+    /**
+     * @return the value as JSON
+     * @throws LuaError if a table contains itself
+     */
+    public static byte[] toJson(LuaValue value) {
+        return new LuaJsonWriter(256).write(value).toByteArray();
+    }
+
+    /**
+     * Appends a value.
+     *
+     * @throws LuaError if a table contains itself, or tables are nested too
+     * deeply
+     */
+    public LuaJsonWriter write(LuaValue value) {
+        switch (value.type()) {
+            case LuaValue.TBOOLEAN:
+                append(value.toboolean() ? TRUE : FALSE);
+                break;
+            case LuaValue.TINT:
+            case LuaValue.TNUMBER:
+                writeNumber(value);
+                break;
+            case LuaValue.TSTRING:
+                writeString(value.strvalue());
+                break;
+            case LuaValue.TTABLE:
+                writeTable(value.checktable());
+                break;
+            default:
+                append(NULL);
+        }
+
+        return this;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, count);
+    }
+
+    /**
+     * @return the number of bytes written so far
+     */
+    public int size() {
+        return count;
+    }
+
+    private void writeNumber(LuaValue value) {
+        if (value.isinttype()) {
+            appendAscii(Integer.toString(value.toint()));
+            return;
+        }
+
+        double number = value.todouble();
+
+        if (Double.isNaN(number) || Double.isInfinite(number)) {
+            append(NULL);
+        } else if (number == Math.rint(number) && Math.abs(number) < 0x1p53) {
+            // lua prints whole doubles without a fraction, so does this
+            appendAscii(Long.toString((long) number));
+        } else {
+            appendAscii(Double.toString(number));
+        }
+    }
+
+    private void writeTable(LuaTable table) {
+        if (path.size() >= MAX_DEPTH) {
+            throw new LuaError("Tables are nested too deeply to be written as JSON");
+        }
+
+        if (path.put(table, Boolean.TRUE) != null) {
+            throw new LuaError("A table which contains itself can not be written as JSON");
+        }
+
+        int length = table.rawlen();
+
+        if (length > 0 && table.keyCount() == length) {
+            append('[');
+
+            for (int i = 1; i <= length; i++) {
+                if (i > 1) {
+                    append(',');
+                }
+
+                write(table.rawget(i));
+            }
+
+            append(']');
+        } else {
+            append('{');
+
+            boolean first = true;
+
+            for (Varargs entry = table.next(LuaValue.NIL); !entry.arg1().isnil(); entry = table.next(entry.arg1())) {
+                if (!first) {
+                    append(',');
+                }
+
+                first = false;
+
+                LuaValue key = entry.arg1();
+
+                // numbers are written as they print in lua
+                writeString(key.isstring() ? key.strvalue() : LuaString.valueOf(key.tojstring()));
+                append(':');
+                write(entry.arg(2));
+            }
+
+            append('}');
+        }
+
+        path.remove(table);
+    }
+
+    private void writeString(LuaString string) {
+        byte[] bytes = string.m_bytes;
+        int end = string.m_offset + string.m_length;
+
+        ensure(string.m_length + 2);
+        buffer[count++] = '"';
+
+        int start = string.m_offset;
+
+        for (int i = string.m_offset; i < end; i++) {
+            int b = bytes[i] & 0xFF;
+
+            boolean escape = b < 0x20 || b == '"' || b == '\\';
+
+            // U+2028 and U+2029 are valid JSON, but end lines in javascript
+            boolean separator = b == 0xE2 && i + 2 < end && bytes[i + 1] == (byte) 0x80
+                    && (bytes[i + 2] == (byte) 0xA8 || bytes[i + 2] == (byte) 0xA9);
+
+            if (!escape && !separator) {
+                continue;
+            }
+
+            append(bytes, start, i - start);
+
+            if (separator) {
+                appendAscii(bytes[i + 2] == (byte) 0xA8 ? "\\u2028" : "\\u2029");
+                i += 2;
+            } else if (b == '"' || b == '\\') {
+                append('\\');
+                append(b);
+            } else if (b == '\n') {
+                appendAscii("\\n");
+            } else if (b == '\r') {
+                appendAscii("\\r");
+            } else if (b == '\t') {
+                appendAscii("\\t");
+            } else {
+                ensure(6);
+                buffer[count++] = '\\';
+                buffer[count++] = 'u';
+                buffer[count++] = '0';
+                buffer[count++] = '0';
+                buffer[count++] = HEX[b >> 4];
+                buffer[count++] = HEX[b & 0xF];
+            }
+
+            start = i + 1;
+        }
+
+        append(bytes, start, end - start);
+        append('"');
+    }
+
+    private void append(int b) {
+        ensure(1);
+        buffer[count++] = (byte) b;
+    }
+
+    private void append(byte[] bytes) {
+        append(bytes, 0, bytes.length);
+    }
+
+    private void append(byte[] bytes, int offset, int length) {
+        ensure(length);
+        System.arraycopy(bytes, offset, buffer, count, length);
+        count += length;
+    }
+
+    private void appendAscii(String text) {
+        ensure(text.length());
+
+        for (int i = 0; i < text.length(); i++) {
+            buffer[count++] = (byte) text.charAt(i);
+        }
+    }
+
+    private void ensure(int length) {
+        if (count + length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + length));
+        }
+    }
+
+}
@@ -9,8 +9,11 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -36,7 +39,29 @@ public class LuaLoader {
 
     private final Consumer<LuaEndpoint> onendpoint;
 
+    private final ScriptCompiler compiler;
+
+    // null when resources are sent uncompressed
+    private final ResponseCompressor compressor;
+
+    // files and endpoints which could not be loaded, and why
+    private final ArrayList<String> failures = new ArrayList<>();
+
     public LuaLoader(DatabaseWrapper database, Consumer<LuaEndpoint> onendpoint) {
+        this(database, null, onendpoint);
+    }
+
+    public LuaLoader(DatabaseWrapper database, ScriptCompiler compiler, Consumer<LuaEndpoint> onendpoint) {
+        this(database, compiler, null, onendpoint);
+    }
+
+    /**
+     * @param compiler compiles scripts to bytecode, or null to interpret them
+     * @param compressor compresses resource files, or null to send them as
+     * they are
+     */
+    public LuaLoader(DatabaseWrapper database, ScriptCompiler compiler, ResponseCompressor compressor,
+            Consumer<LuaEndpoint> onendpoint) {
         globals.set("endpoints", endpoints);
         globals.set("database", CoerceJavaToLua.coerce(database));
 
@@ -50,6 +75,17 @@ public class LuaLoader {
         });
 
         this.onendpoint = onendpoint;
+        this.compiler = compiler;
+        this.compressor = compressor;
+    }
+
+    /**
+     * @return the files and endpoints which could not be loaded, and why.
+     * Everything else is still loaded, so a non-empty list means some
+     * endpoints are missing
+     */
+    public List<String> getFailures() {
+        return Collections.unmodifiableList(failures);
     }
 
     public void LoadDirectory(Path files) {
@@ -57,6 +93,7 @@ public class LuaLoader {
             Files.walk(files).filter(p -> p.toString().endsWith("lua")).forEach(this::LoadEndpoint);
         } catch (IOException ex) {
             Logger.getLogger(LuaLoader.class.getName()).log(Level.SEVERE, null, ex);
+            failures.add(files + ": " + ex);
         }
     }
 
@@ -64,9 +101,25 @@ public class LuaLoader {
         for (LuaValue key : endpoints.keys()) {
             LuaValue value = endpoints.get(key);
             if (value.istable()) {
-                onendpoint.accept(LuaEndpoint.LoadEndpoint(value.checktable()));
+                LuaEndpoint endpoint;
+
+                try {
+                    endpoint = LuaEndpoint.LoadEndpoint(value.checktable(), compressor);
+                } catch (IllegalArgumentException | LuaError ex) {
+                    Logger.getLogger(LuaLoader.class.getName()).log(Level.SEVERE, "Could not load endpoint: {0}", ex.getMessage());
+                    failures.add(ex.getMessage());
+                    continue;
+                }
+
+                if (endpoint != null) {
+                    onendpoint.accept(endpoint);
+                } else {
+                    // unknown endpoint types have already been logged
+                    failures.add("endpoint " + value.get("name").tojstring() + " has an unknown type");
+                }
             } else {
                 Logger.getLogger(LuaLoader.class.getName()).log(Level.SEVERE, "Found non-table in endpoints");
+                failures.add("found a " + value.typename() + " in endpoints");
             }
         }
     }
@@ -75,12 +128,27 @@ public class LuaLoader {
         Logger.getLogger(LuaLoader.class.toString()).log(Level.INFO, "Loading lua file {0}", file.toString());
 
         try {
-            LuaValue value = globals.loadfile(file.toString());
+            LuaValue value = compile(file);
             value.invoke(LuaValue.valueOf(file.toAbsolutePath().toString()));
             files.put(file, value);
         } catch (LuaError ex) {
             Logger.getLogger(LuaLoader.class.toString()).log(Level.SEVERE, "Could not load file: {0}", ex.getMessage());
+            failures.add(ex.getMessage());
+        }
+    }
+
+    private LuaValue compile(Path file) {
+        if (compiler != null) {
+            try {
+                return compiler.load(file, globals);
+            } catch (IOException | LinkageError ex) {
+                // LinkageError when BCEL is missing from the classpath
+                Logger.getLogger(LuaLoader.class.toString()).log(Level.WARNING,
+                        "Could not compile " + file + ", interpreting it instead", ex);
+            }
         }
+
+        return globals.loadfile(file.toString());
     }
 
 }
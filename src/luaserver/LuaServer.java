@@ -29,17 +29,20 @@ public class LuaServer {
         
         Database db = new Database(getProperties("connection.properties"), latch);
         
-        DatabaseWrapper db_wrapper = new DatabaseWrapper(db);
+        Properties server_properties = getProperties("server.properties");
         
-        ServerManager server = new ServerManager("localhost", 80);
+        ServerManager server = new ServerManager(server_properties.getProperty("address", "localhost"),
+                Integer.parseInt(server_properties.getProperty("port", "80")), server_properties);
         
         Logger.getLogger(LuaServer.class.toString()).log(Level.INFO, "Successfully created server");
         
-        LuaLoader loader = new LuaLoader(db_wrapper, server::addEndpoint);
+        EndpointReloader endpoints = new EndpointReloader(db, Paths.get("endpoints"), server_properties, server);
         
-        loader.LoadDirectory(Paths.get("endpoints"));
-
-        loader.FinishLoading();
+        if (!endpoints.reload()) {
+            throw new IllegalStateException("Could not load the endpoints");
+        }
+        
+        registerMetrics(server.getMetrics(), server, db, endpoints);
         
         try {
             latch.await();
@@ -49,10 +52,56 @@ public class LuaServer {
         
         server.start();
         
+        if (Boolean.parseBoolean(server_properties.getProperty("lua.reload", "false"))) {
+            endpoints.watch();
+        }
+        
         Logger.getLogger(LuaServer.class.toString()).log(Level.INFO, "Started server, waiting for connections");
         
     }
     
+    /**
+     * Publishes the state of the workers, lua states, caches and database
+     * pool next to the endpoint metrics. The lua pool is looked up on every
+     * read, reloading scripts replaces it.
+     */
+    private static void registerMetrics(Metrics metrics, ServerManager server, Database db, EndpointReloader endpoints) {
+        metrics.addGauge("workers_active", "Workers handling a connection", server::getActiveWorkers);
+        metrics.addGauge("workers_queued", "Accepted connections waiting for a worker", server::getQueueDepth);
+        metrics.addCounter("connections_rejected_total", "Connections turned away with a full queue", server::getRejectedConnections);
+        
+        metrics.addGauge("lua_states_loaded", "Lua states loaded", () -> endpoints.getPool().getLoaded());
+        metrics.addGauge("lua_states_in_use", "Lua states running a request", () -> endpoints.getPool().getInUse());
+        metrics.addCounter("lua_state_timeouts_total", "Requests which gave up waiting for a lua state",
+                () -> endpoints.getPool().getTimeouts());
+        metrics.addCounter("lua_state_wait_seconds_total", "Time requests spent waiting for a lua state",
+                () -> endpoints.getPool().getWaitNanos() / 1e9);
+        metrics.addCounter("lua_reloads_total", "Times the endpoint scripts were reloaded", endpoints::getReloads);
+        
+        metrics.addCounter("response_cache_hits_total", "Script responses answered from the cache",
+                () -> endpoints.getPool().getResponseCache().getHits());
+        metrics.addCounter("response_cache_misses_total", "Cacheable script responses which had to be run",
+                () -> endpoints.getPool().getResponseCache().getMisses());
+        metrics.addGauge("response_cache_bytes", "Approximate size of the response cache",
+                () -> endpoints.getPool().getResponseCache().getSize());
+        
+        metrics.addGauge("db_connections_open", "Open database connections", db::getTotal);
+        metrics.addGauge("db_connections_idle", "Database connections waiting to be borrowed", db::getIdle);
+        metrics.addGauge("db_pool_utilisation", "Fraction of the maximum pool size which is borrowed", db::getUtilisation);
+        metrics.addCounter("db_borrow_timeouts_total", "Database borrows which timed out", db::getTimeouts);
+        metrics.addCounter("db_borrow_wait_seconds_total", "Time spent waiting for a database connection",
+                () -> db.getWaitNanos() / 1e9);
+        metrics.addGauge("db_borrow_wait_max_seconds", "Longest single wait for a database connection",
+                () -> db.getMaxWaitNanos() / 1e9);
+        metrics.addCounter("db_statement_cache_hits_total", "Prepared statements reused", db::getStatementHits);
+        metrics.addCounter("db_statement_cache_misses_total", "Prepared statements created", db::getStatementMisses);
+        
+        metrics.addCounter("query_cache_hits_total", "Query results answered from the cache", () -> db.getQueryCache().getHits());
+        metrics.addCounter("query_cache_misses_total", "Cacheable queries which had to be run", () -> db.getQueryCache().getMisses());
+        metrics.addCounter("query_cache_invalidations_total", "Cached query results dropped by writes",
+                () -> db.getQueryCache().getInvalidations());
+    }
+    
     public static Properties getProperties(String path) throws IOException {
         
         Properties prop = new Properties();
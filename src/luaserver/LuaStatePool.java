@@ -0,0 +1,454 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package luaserver;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import luaserver.HTTPHelpers.HTTPRequest;
+import luaserver.HTTPHelpers.HTTPResponse;
+import luaserver.HTTPHelpers.HTTPStatusCode;
+import luaserver.LuaEndpoint.AliasEndpoint;
+import luaserver.LuaEndpoint.LuaScriptEndpoint;
+import luaserver.LuaEndpoint.ResourceEndpoint;
+
+/**
+ * A pool of independent Lua states, each with its own {@code Globals} and the
+ * whole endpoints directory loaded into it. LuaJ is not thread-safe, so a
+ * request borrows a state for as long as it runs Lua code and gives it back
+ * afterwards.
+ *
+ * @author azalac
+ */
+public class LuaStatePool {
+
+    private static final int DEFAULT_TIMEOUT = 5000;
+
+    private static final long DEFAULT_RESPONSE_CACHE_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * One loaded copy of the endpoint scripts.
+     */
+    public static class LuaState {
+
+        private final LuaLoader loader;
+
+        private final DatabaseWrapper database;
+
+        private final HashMap<String, LuaEndpoint> endpoints = new HashMap<>();
+
+        // what the loader could not load, the state is missing those endpoints
+        private final List<String> failures;
+
+        private LuaState(Database database, ScriptCompiler compiler, ResponseCompressor compressor, Path directory) {
+            this.database = new DatabaseWrapper(database);
+
+            loader = new LuaLoader(this.database, compiler, compressor, endpoint -> endpoints.put(endpoint.getResourceName(), endpoint));
+            loader.LoadDirectory(directory);
+            loader.FinishLoading();
+
+            failures = loader.getFailures();
+
+            AliasEndpoint.resolve(endpoints);
+
+            // scripts may query while loading
+            this.database.release();
+        }
+
+        public LuaEndpoint getEndpoint(String name) {
+            return endpoints.get(name);
+        }
+
+        /**
+         * Gives back the database connection the last request borrowed.
+         */
+        public void finish() {
+            database.release();
+        }
+
+    }
+
+    private final Database database;
+    private final Path directory;
+
+    // null when scripts are interpreted
+    private final ScriptCompiler compiler;
+
+    // null when responses are sent uncompressed
+    private final ResponseCompressor compressor;
+
+    private final int size, warmup;
+    private final long timeout;
+
+    private final ArrayBlockingQueue<LuaState> idle;
+
+    // every loaded state, idle or not
+    private final CopyOnWriteArrayList<LuaState> states = new CopyOnWriteArrayList<>();
+
+    // responses of cacheable endpoints, dropped with the pool when scripts are reloaded
+    private final ResponseCache responses;
+
+    private final AtomicInteger created = new AtomicInteger();
+    private final AtomicInteger in_use = new AtomicInteger();
+
+    // requests which have entered the pool, counted before closed is checked
+    private final AtomicInteger active = new AtomicInteger();
+
+    private volatile boolean closed;
+
+    // loads the states past the warm-up ones, null once they are loaded
+    private volatile ExecutorService background;
+
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong wait_nanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * Creates a pool of {@code lua.pool.size} states (defaults to the number
+     * of cores). {@code lua.pool.warmup} of them are loaded by
+     * {@link #start}, the rest on a background thread once the endpoints are
+     * published, so requests never wait for scripts to be loaded. A
+     * request waits up to {@code lua.pool.timeout} milliseconds for a state
+     * before it is answered with a 503.
+     *
+     * @param database the connection pool every state borrows from
+     * @param compiler compiles the scripts once for every state, or null to
+     * interpret them
+     * @param directory the directory of endpoint scripts
+     * @param properties the server configuration
+     */
+    public LuaStatePool(Database database, ScriptCompiler compiler, Path directory, Properties properties) {
+        this.database = database;
+        this.compiler = compiler;
+        this.directory = directory;
+
+        compressor = ResponseCompressor.fromProperties(properties);
+
+        size = Integer.parseInt(properties.getProperty("lua.pool.size",
+                Integer.toString(Runtime.getRuntime().availableProcessors())));
+
+        warmup = Math.max(1, Math.min(size, Integer.parseInt(properties.getProperty("lua.pool.warmup",
+                Integer.toString(size)))));
+
+        timeout = Long.parseLong(properties.getProperty("lua.pool.timeout", Integer.toString(DEFAULT_TIMEOUT)));
+
+        idle = new ArrayBlockingQueue<>(size);
+
+        responses = new ResponseCache(Long.parseLong(properties.getProperty("cache.responses.size",
+                Long.toString(DEFAULT_RESPONSE_CACHE_SIZE))), compressor);
+    }
+
+    /**
+     * Loads the warm-up states in parallel, then hands the endpoints to the
+     * server. Resources do not run Lua, so they are handed over as they are,
+     * everything else borrows a state for each request. Aliases without
+     * mutators point straight at what their target was handed over as.
+     */
+    public void start(Consumer<LuaEndpoint> onendpoint) {
+        ExecutorService loaders = Executors.newFixedThreadPool(Math.min(warmup, Runtime.getRuntime().availableProcessors()));
+
+        ArrayList<Future<LuaState>> loading = new ArrayList<>();
+
+        for (int i = 0; i < warmup; i++) {
+            loading.add(loaders.submit(this::create));
+        }
+
+        loaders.shutdown();
+
+        for (Future<LuaState> state : loading) {
+            try {
+                LuaState loaded = state.get();
+                states.add(loaded);
+                idle.add(loaded);
+            } catch (InterruptedException | ExecutionException ex) {
+                Logger.getLogger(LuaStatePool.class.getName()).log(Level.SEVERE, "Could not load lua state", ex);
+            }
+        }
+
+        if (states.isEmpty()) {
+            throw new IllegalStateException("No lua state could be loaded");
+        }
+
+        LuaState first = states.get(0);
+
+        // publishing would turn every endpoint of a broken file into a 404
+        if (!first.failures.isEmpty()) {
+            throw new IllegalStateException("Some scripts failed to load: " + String.join("; ", first.failures));
+        }
+
+        HashMap<String, LuaEndpoint> published = new HashMap<>();
+
+        for (LuaEndpoint endpoint : first.endpoints.values()) {
+            if (endpoint instanceof ResourceEndpoint) {
+                published.put(endpoint.getResourceName(), endpoint);
+            } else if (endpoint instanceof LuaScriptEndpoint && ((LuaScriptEndpoint) endpoint).getCachePolicy() != null) {
+                // answered from the cache before a state is borrowed
+                published.put(endpoint.getResourceName(), responses.wrap(new PooledEndpoint(endpoint.getResourceName()),
+                        ((LuaScriptEndpoint) endpoint).getCachePolicy()));
+            } else if (!(endpoint instanceof AliasEndpoint) || ((AliasEndpoint) endpoint).hasMutators()) {
+                // mutators are lua, so the alias runs on a state and calls its target there
+                published.put(endpoint.getResourceName(), new PooledEndpoint(endpoint.getResourceName()));
+            }
+        }
+
+        for (LuaEndpoint endpoint : first.endpoints.values()) {
+            if (endpoint instanceof AliasEndpoint && !((AliasEndpoint) endpoint).hasMutators()) {
+                // goes straight to whatever its target was published as
+                published.put(endpoint.getResourceName(), new AliasEndpoint(endpoint.getResourceName(),
+                        published.get(((AliasEndpoint) endpoint).getTarget().getResourceName())));
+            }
+        }
+
+        published.values().forEach(onendpoint);
+
+        Logger.getLogger(LuaStatePool.class.getName()).log(Level.INFO,
+                "Loaded {0} of {1} lua states", new Object[]{states.size(), size});
+
+        if (states.size() < size) {
+            background = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "Lua State Loader");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            background.execute(this::loadRemaining);
+            background.shutdown();
+        }
+    }
+
+    /**
+     * Loads states until the pool is full, one at a time so the server keeps
+     * its cores for requests.
+     */
+    private void loadRemaining() {
+        while (!closed && created.get() < size) {
+            LuaState state;
+
+            try {
+                state = create();
+            } catch (RuntimeException ex) {
+                Logger.getLogger(LuaStatePool.class.getName()).log(Level.SEVERE, "Could not load lua state", ex);
+                break;
+            }
+
+            // the scripts loaded for the first states, so this is a file which changed since
+            if (!state.failures.isEmpty()) {
+                Logger.getLogger(LuaStatePool.class.getName()).log(Level.SEVERE,
+                        "Dropped a lua state whose scripts failed to load: {0}", String.join("; ", state.failures));
+                break;
+            }
+
+            states.add(state);
+            idle.add(state);
+        }
+
+        background = null;
+    }
+
+    private LuaState create() {
+        long pre = System.nanoTime();
+
+        LuaState state = new LuaState(database, compiler, compressor, directory);
+
+        created.incrementAndGet();
+
+        Logger.getLogger(LuaStatePool.class.getName()).log(Level.FINE,
+                "Loaded lua state in {0} seconds", (System.nanoTime() - pre) / 1e9);
+
+        return state;
+    }
+
+    /**
+     * Takes an idle state, or waits up to {@code lua.pool.timeout}
+     * milliseconds for one to be released. States are only loaded by
+     * {@link #start} and its background loader, never here.
+     *
+     * @return the state, or null if none became free within the timeout
+     */
+    public LuaState borrow() throws InterruptedException {
+        borrows.incrementAndGet();
+
+        LuaState state = idle.poll();
+
+        if (state == null) {
+            long pre = System.nanoTime();
+
+            state = idle.poll(timeout, TimeUnit.MILLISECONDS);
+
+            wait_nanos.addAndGet(System.nanoTime() - pre);
+
+            if (state == null) {
+                timeouts.incrementAndGet();
+                return null;
+            }
+        }
+
+        in_use.incrementAndGet();
+
+        return state;
+    }
+
+    public void release(LuaState state) {
+        state.finish();
+        in_use.decrementAndGet();
+        idle.add(state);
+    }
+
+    /**
+     * Waits for the requests running on the pool to finish, up to the
+     * timeout, then stops its threads. Requests which reach the pool
+     * afterwards are answered with 503. Runs on the thread which replaced the
+     * pool, never on a request's.
+     */
+    public void close(long millis) {
+        closed = true;
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+
+        try {
+            while (active.get() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (active.get() > 0) {
+            Logger.getLogger(LuaStatePool.class.getName()).log(Level.WARNING,
+                    "Closing lua pool with {0} requests still running", active.get());
+        }
+
+        ExecutorService loading = background;
+
+        if (loading != null) {
+            loading.shutdownNow();
+        }
+
+        states.clear();
+        idle.clear();
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public ResponseCache getResponseCache() {
+        return responses;
+    }
+
+    public int getLoaded() {
+        return states.size();
+    }
+
+    public int getInUse() {
+        return in_use.get();
+    }
+
+    public int getIdle() {
+        return idle.size();
+    }
+
+    public long getBorrows() {
+        return borrows.get();
+    }
+
+    /**
+     * @return the total time requests spent waiting for a state to be
+     * released, in nanoseconds
+     */
+    public long getWaitNanos() {
+        return wait_nanos.get();
+    }
+
+    /**
+     * @return the number of requests which gave up waiting for a state
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * Stands in for an endpoint in every state. Each request borrows a state
+     * and runs that state's copy of the endpoint.
+     */
+    private class PooledEndpoint implements LuaEndpoint {
+
+        private final String name;
+
+        public PooledEndpoint(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getResourceName() {
+            return name;
+        }
+
+        @Override
+        public HTTPResponse HandleRequest(HTTPRequest request) {
+            active.incrementAndGet();
+
+            try {
+                // a request routed just before the pool was replaced
+                if (closed) {
+                    return new HTTPResponse(HTTPStatusCode.SERVICE_UNAVAILABLE, "Endpoints are being reloaded");
+                }
+
+                return run(request);
+            } finally {
+                active.decrementAndGet();
+            }
+        }
+
+        private HTTPResponse run(HTTPRequest request) {
+            LuaState state;
+
+            try {
+                state = borrow();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return new HTTPResponse(HTTPStatusCode.SERVICE_UNAVAILABLE, "Interrupted while waiting for a lua state");
+            }
+
+            if (state == null) {
+                return new HTTPResponse(HTTPStatusCode.SERVICE_UNAVAILABLE, "No lua state became free in time");
+            }
+
+            try {
+                LuaEndpoint endpoint = state.getEndpoint(name);
+
+                return endpoint != null ? endpoint.HandleRequest(request) : missing();
+            } finally {
+                release(state);
+            }
+        }
+
+        /**
+         * States only join the pool when every script loaded, so this means
+         * the state and the published endpoints disagree.
+         */
+        private HTTPResponse missing() {
+            Logger.getLogger(LuaStatePool.class.getName()).log(Level.SEVERE, "Lua state has no endpoint {0}", name);
+            return new HTTPResponse(HTTPStatusCode.SERVICE_UNAVAILABLE, "Endpoint " + name + " is not loaded");
+        }
+
+    }
+
+}
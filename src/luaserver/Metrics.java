@@ -0,0 +1,377 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package luaserver;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import luaserver.HTTPHelpers.HTTPRequest;
+import luaserver.HTTPHelpers.HTTPResponse;
+import luaserver.HTTPHelpers.HTTPStatusCode;
+
+/**
+ * Counts requests, errors and status codes, and keeps a latency histogram,
+ * for every endpoint. Recording a request only increments counters, it never
+ * locks, so it can be done on every request.
+ * <p>
+ * Other parts of the server register gauges and counters of their own, and
+ * everything is served by {@link #getEndpoint} in the Prometheus text
+ * format.
+ *
+ * @author azalac
+ */
+public class Metrics {
+
+    private static final String PREFIX = "luaserver_";
+
+    // histogram buckets exported to prometheus, in seconds
+    private static final String[] EXPORTED_BOUNDS = {
+        "0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10"
+    };
+
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    /**
+     * Latencies in microseconds, in buckets whose width is an eighth of a
+     * power of two, so every bucket is within 12.5% of the values in it.
+     */
+    static class Histogram {
+
+        private static final int SUB_BITS = 3;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+
+        // about 19 hours, anything slower lands in the last bucket
+        private static final int MAX_EXPONENT = 36;
+
+        private static final int BUCKETS = SUB_COUNT + (MAX_EXPONENT - SUB_BITS + 1) * SUB_COUNT;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum_micros = new LongAdder();
+
+        void record(long nanos) {
+            long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+
+            counts.incrementAndGet(index(micros));
+            count.increment();
+            sum_micros.add(micros);
+        }
+
+        private static int index(long micros) {
+            if (micros < SUB_COUNT) {
+                return (int) micros;
+            }
+
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+
+            if (exponent > MAX_EXPONENT) {
+                return BUCKETS - 1;
+            }
+
+            int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+
+            return SUB_COUNT + (exponent - SUB_BITS) * SUB_COUNT + sub;
+        }
+
+        /**
+         * @return the first value past the bucket, in microseconds
+         */
+        private static long upperBound(int index) {
+            if (index < SUB_COUNT) {
+                return index + 1;
+            }
+
+            int exponent = (index - SUB_COUNT) / SUB_COUNT + SUB_BITS;
+            int sub = (index - SUB_COUNT) % SUB_COUNT;
+
+            return (long) (SUB_COUNT + sub + 1) << (exponent - SUB_BITS);
+        }
+
+        /**
+         * @return a copy of the bucket counts, which may be a little behind
+         * {@link #getCount} while requests are being recorded
+         */
+        long[] snapshot() {
+            long[] copy = new long[BUCKETS];
+
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = counts.get(i);
+            }
+
+            return copy;
+        }
+
+        /**
+         * @return the upper bound of the bucket holding the quantile, in
+         * seconds, 0 if nothing was recorded
+         */
+        static double quantile(long[] buckets, double quantile) {
+            long total = 0;
+
+            for (long bucket : buckets) {
+                total += bucket;
+            }
+
+            if (total == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(quantile * total), seen = 0;
+
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+
+                if (seen >= rank) {
+                    return upperBound(i) / 1e6;
+                }
+            }
+
+            return upperBound(buckets.length - 1) / 1e6;
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+        double getSumSeconds() {
+            return sum_micros.sum() / 1e6;
+        }
+
+    }
+
+    /**
+     * What one endpoint has done since the server started.
+     */
+    public static class EndpointStats {
+
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+
+        private final ConcurrentHashMap<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+
+        private final Histogram latency = new Histogram();
+
+        public long getRequests() {
+            return requests.sum();
+        }
+
+        /**
+         * @return requests which threw or were answered with a 5xx status
+         */
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        /**
+         * @return the latency below which the given fraction of requests
+         * finished, in seconds
+         */
+        public double getLatency(double quantile) {
+            return Histogram.quantile(latency.snapshot(), quantile);
+        }
+
+    }
+
+    private static class Registered {
+
+        private final String name, help, type;
+        private final DoubleSupplier value;
+
+        private Registered(String name, String help, String type, DoubleSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+        }
+
+    }
+
+    private final ConcurrentHashMap<String, EndpointStats> endpoints = new ConcurrentHashMap<>();
+
+    private final CopyOnWriteArrayList<Registered> registered = new CopyOnWriteArrayList<>();
+
+    /**
+     * Records a finished request.
+     *
+     * @param endpoint the name of the endpoint which handled it
+     * @param status the response's status, null if the endpoint threw
+     * @param nanos how long the endpoint took
+     */
+    public void record(String endpoint, HTTPStatusCode status, long nanos) {
+        EndpointStats stats = getStats(endpoint);
+
+        stats.requests.increment();
+        stats.latency.record(nanos);
+
+        if (status == null || status.getCode() >= 500) {
+            stats.errors.increment();
+        }
+
+        if (status != null) {
+            LongAdder count = stats.statuses.get(status.getCode());
+
+            if (count == null) {
+                count = stats.statuses.computeIfAbsent(status.getCode(), code -> new LongAdder());
+            }
+
+            count.increment();
+        }
+    }
+
+    public EndpointStats getStats(String endpoint) {
+        EndpointStats stats = endpoints.get(endpoint);
+
+        // get first, computeIfAbsent locks its bin even when the value is there
+        return stats != null ? stats : endpoints.computeIfAbsent(endpoint, e -> new EndpointStats());
+    }
+
+    /**
+     * Registers a value which can go up and down, read whenever metrics are
+     * served.
+     *
+     * @param name the name after the {@code luaserver_} prefix
+     */
+    public void addGauge(String name, String help, DoubleSupplier value) {
+        registered.add(new Registered(PREFIX + name, help, "gauge", value));
+    }
+
+    /**
+     * Registers a value which only goes up, read whenever metrics are served.
+     *
+     * @param name the name after the {@code luaserver_} prefix, by convention
+     * ending in {@code _total}
+     */
+    public void addCounter(String name, String help, DoubleSupplier value) {
+        registered.add(new Registered(PREFIX + name, help, "counter", value));
+    }
+
+    /**
+     * @return every metric in the Prometheus text format
+     */
+    public String format() {
+        StringBuilder out = new StringBuilder(4096);
+
+        TreeMap<String, EndpointStats> sorted = new TreeMap<>(endpoints);
+
+        header(out, "requests_total", "Requests handled, by endpoint", "counter");
+        for (Map.Entry<String, EndpointStats> endpoint : sorted.entrySet()) {
+            sample(out, "requests_total", label(endpoint.getKey()), endpoint.getValue().getRequests());
+        }
+
+        header(out, "errors_total", "Requests which failed or were answered with a 5xx status, by endpoint", "counter");
+        for (Map.Entry<String, EndpointStats> endpoint : sorted.entrySet()) {
+            sample(out, "errors_total", label(endpoint.getKey()), endpoint.getValue().getErrors());
+        }
+
+        header(out, "responses_total", "Responses sent, by endpoint and status code", "counter");
+        for (Map.Entry<String, EndpointStats> endpoint : sorted.entrySet()) {
+            for (Map.Entry<Integer, LongAdder> status : new TreeMap<>(endpoint.getValue().statuses).entrySet()) {
+                sample(out, "responses_total", label(endpoint.getKey()) + ",code=\"" + status.getKey() + "\"",
+                        status.getValue().sum());
+            }
+        }
+
+        header(out, "request_duration_seconds", "Time endpoints took to handle requests", "histogram");
+        for (Map.Entry<String, EndpointStats> endpoint : sorted.entrySet()) {
+            Histogram latency = endpoint.getValue().latency;
+            long[] buckets = latency.snapshot();
+
+            long[] cumulative = new long[EXPORTED_BOUNDS.length];
+            long seen = 0;
+            int bucket = 0;
+
+            for (int i = 0; i < EXPORTED_BOUNDS.length; i++) {
+                long limit = Math.round(Double.parseDouble(EXPORTED_BOUNDS[i]) * 1e6);
+
+                while (bucket < buckets.length && Histogram.upperBound(bucket) <= limit) {
+                    seen += buckets[bucket++];
+                }
+
+                cumulative[i] = seen;
+            }
+
+            while (bucket < buckets.length) {
+                seen += buckets[bucket++];
+            }
+
+            for (int i = 0; i < EXPORTED_BOUNDS.length; i++) {
+                sample(out, "request_duration_seconds_bucket", label(endpoint.getKey())
+                        + ",le=\"" + EXPORTED_BOUNDS[i] + "\"", cumulative[i]);
+            }
+
+            sample(out, "request_duration_seconds_bucket", label(endpoint.getKey()) + ",le=\"+Inf\"", seen);
+            sample(out, "request_duration_seconds_sum", label(endpoint.getKey()), latency.getSumSeconds());
+            sample(out, "request_duration_seconds_count", label(endpoint.getKey()), seen);
+        }
+
+        header(out, "request_duration_quantile_seconds", "Estimated latency quantiles, within 12.5%", "gauge");
+        for (Map.Entry<String, EndpointStats> endpoint : sorted.entrySet()) {
+            long[] buckets = endpoint.getValue().latency.snapshot();
+
+            for (double quantile : QUANTILES) {
+                sample(out, "request_duration_quantile_seconds", label(endpoint.getKey())
+                        + ",quantile=\"" + quantile + "\"", Histogram.quantile(buckets, quantile));
+            }
+        }
+
+        for (Registered metric : registered) {
+            out.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+            out.append("# TYPE ").append(metric.name).append(' ').append(metric.type).append('\n');
+            out.append(metric.name).append(' ').append(number(metric.value.getAsDouble())).append('\n');
+        }
+
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(PREFIX).append(name).append('{').append(labels).append("} ").append(number(value)).append('\n');
+    }
+
+    private static String label(String endpoint) {
+        return "endpoint=\"" + endpoint.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+    }
+
+    private static String number(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+
+        return String.format(Locale.ROOT, "%.6g", value);
+    }
+
+    /**
+     * @return an endpoint serving every metric at the given path
+     */
+    public LuaEndpoint getEndpoint(String path) {
+        return new LuaEndpoint() {
+            @Override
+            public String getResourceName() {
+                return path;
+            }
+
+            @Override
+            public HTTPResponse HandleRequest(HTTPRequest request) {
+                HTTPResponse response = new HTTPResponse(HTTPStatusCode.OK, format());
+                response.setHeader("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                response.setHeader("Cache-Control", "no-store");
+                return response;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,410 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package luaserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Caches the results of queries which asked for it, shared by every lua
+ * state. Results are keyed by their SQL and parameters and live until their
+ * time to live runs out, the cache needs the space ({@code cache.size} bytes
+ * in connection.properties, least recently used first), or a statement run
+ * through {@link DatabaseWrapper} writes to a table the query reads.
+ * <p>
+ * Writes made by anything else are only noticed when the time to live runs
+ * out. Tables are found by looking for the names after FROM, JOIN, UPDATE
+ * and INTO, so a query may be invalidated more often than needed, but not
+ * less.
+ *
+ * @author azalac
+ */
+public class QueryCache {
+
+    private static final Pattern TABLE = Pattern.compile("\\b(?:FROM|JOIN|UPDATE|INTO)\\s+([`\"\\w.]+)",
+            Pattern.CASE_INSENSITIVE);
+
+    // rough sizes of java objects, the limit only needs to be approximate
+    private static final int ENTRY_OVERHEAD = 128;
+    private static final int ROW_OVERHEAD = 32;
+    private static final int VALUE_OVERHEAD = 24;
+
+    /**
+     * The rows of a cached query. Never modified, every hit builds new lua
+     * tables from them.
+     */
+    public static class Result {
+
+        private final String[] labels;
+        private final List<Object[]> rows;
+
+        public Result(String[] labels, List<Object[]> rows) {
+            this.labels = labels;
+            this.rows = rows;
+        }
+
+        public String[] getLabels() {
+            return labels;
+        }
+
+        public List<Object[]> getRows() {
+            return rows;
+        }
+
+        private long getSize() {
+            long size = ROW_OVERHEAD;
+
+            for (String label : labels) {
+                size += VALUE_OVERHEAD + 2 * label.length();
+            }
+
+            for (Object[] row : rows) {
+                size += ROW_OVERHEAD;
+
+                for (Object value : row) {
+                    size += VALUE_OVERHEAD;
+
+                    if (value instanceof String) {
+                        size += 2 * ((String) value).length();
+                    } else if (value instanceof byte[]) {
+                        size += ((byte[]) value).length;
+                    }
+                }
+            }
+
+            return size;
+        }
+
+    }
+
+    /**
+     * How often one query was found in the cache.
+     */
+    public static class QueryStats {
+
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+
+        public long getHits() {
+            return hits.get();
+        }
+
+        public long getMisses() {
+            return misses.get();
+        }
+
+        public double getHitRate() {
+            long h = hits.get(), total = h + misses.get();
+            return total == 0 ? 0 : h / (double) total;
+        }
+
+    }
+
+    private static class Key {
+
+        private final String sql;
+        private final List<Object> parameters;
+
+        private Key(String sql, Object[] parameters) {
+            this.sql = sql;
+            this.parameters = Arrays.asList(parameters);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && ((Key) other).sql.equals(sql) && ((Key) other).parameters.equals(parameters);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * sql.hashCode() + parameters.hashCode();
+        }
+
+    }
+
+    private static class Entry {
+
+        private final Result result;
+        private final long expires;
+        private final long size;
+        private final Set<String> tables;
+
+        private Entry(Result result, long expires, long size, Set<String> tables) {
+            this.result = result;
+            this.expires = expires;
+            this.size = size;
+            this.tables = tables;
+        }
+
+    }
+
+    private final long capacity;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // least recently used first, guarded by lock
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+
+    // the cached keys reading each table, guarded by lock
+    private final HashMap<String, Set<Key>> readers = new HashMap<>();
+
+    private long size;
+
+    // bumped by every write, so a query which raced one is not cached
+    private long generation;
+
+    private final ConcurrentHashMap<String, Set<String>> tables = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, QueryStats> stats = new ConcurrentHashMap<>();
+
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * @param capacity the approximate number of bytes results may take up,
+     * 0 to cache nothing
+     */
+    public QueryCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    /**
+     * @return the cached result, or null if there is none or it expired
+     */
+    public Result get(String sql, Object[] parameters) {
+        Key key = new Key(sql, parameters);
+        Entry entry;
+
+        lock.lock();
+        try {
+            entry = entries.get(key);
+
+            if (entry != null && entry.expires - System.nanoTime() < 0) {
+                remove(key, entry);
+                entry = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        QueryStats query = getStats(sql);
+
+        if (entry == null) {
+            query.misses.incrementAndGet();
+            return null;
+        }
+
+        query.hits.incrementAndGet();
+        return entry.result;
+    }
+
+    /**
+     * @return the value to pass to {@link #put} once the query has run
+     */
+    public long getGeneration() {
+        lock.lock();
+        try {
+            return generation;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Caches a result, unless something was written since the query started.
+     *
+     * @param generation {@link #getGeneration} from before the query ran
+     * @param ttl how long the result stays valid, in seconds
+     */
+    public void put(String sql, Object[] parameters, Result result, long generation, double ttl) {
+        Key key = new Key(sql, parameters);
+        long entry_size = ENTRY_OVERHEAD + 2 * sql.length() + parameters.length * VALUE_OVERHEAD + result.getSize();
+
+        // would push everything else out
+        if (entry_size > capacity / 2) {
+            return;
+        }
+
+        Set<String> read = getTables(sql);
+        Entry entry = new Entry(result, System.nanoTime() + (long) (ttl * TimeUnit.SECONDS.toNanos(1)), entry_size, read);
+
+        lock.lock();
+        try {
+            if (generation != this.generation) {
+                return;
+            }
+
+            Entry previous = entries.get(key);
+
+            if (previous != null) {
+                remove(key, previous);
+            }
+
+            entries.put(key, entry);
+            size += entry_size;
+
+            for (String table : read) {
+                readers.computeIfAbsent(table, t -> new HashSet<>()).add(key);
+            }
+
+            Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator();
+
+            while (size > capacity && eldest.hasNext()) {
+                Map.Entry<Key, Entry> evicted = eldest.next();
+
+                eldest.remove();
+                forget(evicted.getKey(), evicted.getValue());
+                evictions.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops every result which reads a table the statement writes to. If no
+     * table can be found in it, everything is dropped.
+     */
+    public void invalidate(String sql) {
+        Set<String> written = getTables(sql);
+
+        lock.lock();
+        try {
+            generation++;
+
+            if (written.isEmpty()) {
+                invalidations.addAndGet(entries.size());
+                entries.clear();
+                readers.clear();
+                size = 0;
+                return;
+            }
+
+            for (String table : written) {
+                Set<Key> keys = readers.remove(table);
+
+                if (keys == null) {
+                    continue;
+                }
+
+                for (Key key : new ArrayList<>(keys)) {
+                    Entry entry = entries.get(key);
+
+                    if (entry != null) {
+                        remove(key, entry);
+                        invalidations.incrementAndGet();
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // both must be called with the lock held
+    private void remove(Key key, Entry entry) {
+        entries.remove(key);
+        forget(key, entry);
+    }
+
+    private void forget(Key key, Entry entry) {
+        size -= entry.size;
+
+        for (String table : entry.tables) {
+            Set<Key> keys = readers.get(table);
+
+            if (keys != null) {
+                keys.remove(key);
+
+                if (keys.isEmpty()) {
+                    readers.remove(table);
+                }
+            }
+        }
+    }
+
+    private Set<String> getTables(String sql) {
+        return tables.computeIfAbsent(sql, s -> {
+            HashSet<String> found = new HashSet<>();
+            Matcher matcher = TABLE.matcher(s);
+
+            while (matcher.find()) {
+                String name = matcher.group(1).replace("`", "").replace("\"", "");
+                found.add(name.substring(name.lastIndexOf('.') + 1).toLowerCase());
+            }
+
+            return Collections.unmodifiableSet(found);
+        });
+    }
+
+    private QueryStats getStats(String sql) {
+        return stats.computeIfAbsent(sql, s -> new QueryStats());
+    }
+
+    /**
+     * @return the hits and misses of every query which used the cache, by
+     * SQL
+     */
+    public Map<String, QueryStats> getQueryStats() {
+        return Collections.unmodifiableMap(stats);
+    }
+
+    public long getHits() {
+        return stats.values().stream().mapToLong(QueryStats::getHits).sum();
+    }
+
+    public long getMisses() {
+        return stats.values().stream().mapToLong(QueryStats::getMisses).sum();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    /**
+     * @return the approximate number of bytes cached
+     */
+    public long getSize() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getEntries() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
@@ -0,0 +1,417 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package luaserver;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import luaserver.HTTPHelpers.HTTPRequest;
+import luaserver.HTTPHelpers.HTTPResponse;
+import luaserver.HTTPHelpers.HTTPStatusCode;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+
+/**
+ * Keeps the responses of script endpoints which declare a {@code cache} table,
+ * so repeated GETs are answered without running lua:
+ * <pre>
+ * cache = {ttl = 10, vary = {query = {"username"}, headers = {"Authorization"}}}
+ * </pre>
+ * A response is kept for {@code ttl} seconds, separately for every path and
+ * every combination of the listed query values and headers (the {@code operation}
+ * query value is always part of it). Only complete 200 responses are kept,
+ * least recently used ones are dropped once they take up more than
+ * {@code cache.responses.size} bytes.
+ * <p>
+ * Kept responses carry an {@code ETag}, and a request whose
+ * {@code If-None-Match} matches it is answered with 304 Not Modified.
+ * <p>
+ * Every entry is compressed once for each encoding clients ask for, and the
+ * compressed copy is kept with it, so hits are never compressed again.
+ *
+ * @author azalac
+ */
+public class ResponseCache {
+
+    private static final int ENTRY_OVERHEAD = 256;
+
+    /**
+     * How an endpoint wants its responses cached.
+     */
+    public static class Policy {
+
+        private final long ttl;
+        private final String[] query;
+        private final String[] headers;
+
+        public Policy(double ttl, String[] query, String[] headers) {
+            this.ttl = (long) (ttl * TimeUnit.SECONDS.toNanos(1));
+            this.query = query;
+            this.headers = headers;
+        }
+
+        /**
+         * Reads an endpoint's {@code cache} table.
+         *
+         * @return the policy, or null if the endpoint declares none
+         */
+        public static Policy fromLua(String name, LuaValue cache) {
+            if (cache.isnil()) {
+                return null;
+            } else if (!cache.istable()) {
+                throw new IllegalArgumentException(name + ": cache must be a table or nil");
+            }
+
+            LuaValue ttl = cache.get("ttl");
+
+            if (!ttl.isnumber()) {
+                throw new IllegalArgumentException(name + ": cache ttl must be a number");
+            }
+
+            LuaValue vary = cache.get("vary");
+
+            if (!vary.isnil() && !vary.istable()) {
+                throw new IllegalArgumentException(name + ": cache vary must be a table or nil");
+            }
+
+            ArrayList<String> query = new ArrayList<>(strings(name, vary.isnil() ? LuaValue.NIL : vary.get("query")));
+
+            // picks the handler, so it always changes the response
+            if (!query.contains("operation")) {
+                query.add("operation");
+            }
+
+            List<String> headers = strings(name, vary.isnil() ? LuaValue.NIL : vary.get("headers"));
+
+            return new Policy(ttl.todouble(), query.toArray(new String[0]), headers.toArray(new String[0]));
+        }
+
+        private static List<String> strings(String name, LuaValue list) {
+            ArrayList<String> strings = new ArrayList<>();
+
+            if (list.isnil()) {
+                return strings;
+            } else if (!list.istable()) {
+                throw new IllegalArgumentException(name + ": cache vary lists must be tables");
+            }
+
+            LuaTable table = list.checktable();
+
+            for (int i = 1; i <= table.length(); i++) {
+                strings.add(table.get(i).checkjstring());
+            }
+
+            return strings;
+        }
+
+    }
+
+    private static class Entry {
+
+        // as the endpoint made it
+        private final HTTPResponse response;
+        private final String etag;
+        private final long expires;
+        private final long size;
+
+        private Entry(HTTPResponse response, String etag, long expires, long size) {
+            this.response = response;
+            this.etag = etag;
+            this.expires = expires;
+            this.size = size;
+        }
+
+        // the response sent for each encoding, made the first time it is asked for
+        private final ConcurrentHashMap<String, HTTPResponse> encoded = new ConcurrentHashMap<>(4);
+
+    }
+
+    private final long capacity;
+
+    // null when responses are sent uncompressed
+    private final ResponseCompressor compressor;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // least recently used first, guarded by lock
+    private final LinkedHashMap<List<String>, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+
+    private long size;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong not_modified = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param capacity the approximate number of bytes responses may take up
+     * @param compressor compresses kept responses, or null to keep them as
+     * they are
+     */
+    public ResponseCache(long capacity, ResponseCompressor compressor) {
+        this.capacity = capacity;
+        this.compressor = compressor;
+    }
+
+    /**
+     * @return an endpoint which answers from the cache, and asks the given
+     * endpoint when it can not
+     */
+    public LuaEndpoint wrap(LuaEndpoint endpoint, Policy policy) {
+        return capacity > 0 ? new CachedEndpoint(endpoint, policy) : endpoint;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of requests answered with 304 Not Modified
+     */
+    public long getNotModified() {
+        return not_modified.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the approximate number of bytes cached
+     */
+    public long getSize() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Entry get(List<String> key) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(key);
+
+            if (entry != null && entry.expires - System.nanoTime() < 0) {
+                entries.remove(key);
+                size -= entry.size;
+                return null;
+            }
+
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void put(List<String> key, Entry entry) {
+        // would push everything else out
+        if (entry.size > capacity / 2) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            Entry previous = entries.put(key, entry);
+
+            if (previous != null) {
+                size -= previous.size;
+            }
+
+            size += entry.size;
+
+            Iterator<Entry> eldest = entries.values().iterator();
+
+            while (size > capacity && eldest.hasNext()) {
+                size -= eldest.next().size;
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static String etag(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+
+            StringBuilder etag = new StringBuilder("\"");
+
+            // half the digest is plenty to tell versions of one response apart
+            for (int i = 0; i < digest.length / 2; i++) {
+                etag.append(String.format("%02x", digest[i]));
+            }
+
+            return etag.append('"').toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new AssertionError("SHA-256 is always available", ex);
+        }
+    }
+
+    /**
+     * @return true if the request's {@code If-None-Match} lists the tag
+     */
+    static boolean matches(HTTPRequest request, String etag) {
+        String header = request.getHeader("If-None-Match");
+
+        if (header == null) {
+            return false;
+        }
+
+        for (String candidate : header.split(",")) {
+            candidate = candidate.trim();
+
+            // weak comparison, as If-None-Match asks for
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    static HTTPResponse notModified(String etag) {
+        HTTPResponse response = new HTTPResponse(HTTPStatusCode.NOT_MODIFIED);
+        response.removeHeader("Content-Length");
+        response.setHeader("ETag", etag);
+        return response;
+    }
+
+    private class CachedEndpoint implements LuaEndpoint {
+
+        private final LuaEndpoint endpoint;
+        private final Policy policy;
+
+        private final String vary;
+
+        public CachedEndpoint(LuaEndpoint endpoint, Policy policy) {
+            this.endpoint = endpoint;
+            this.policy = policy;
+
+            vary = policy.headers.length == 0 ? null : String.join(", ", policy.headers);
+        }
+
+        @Override
+        public String getResourceName() {
+            return endpoint.getResourceName();
+        }
+
+        @Override
+        public HTTPResponse HandleRequest(HTTPRequest request) {
+            if (!request.getMethod().equals("GET")) {
+                return endpoint.HandleRequest(request);
+            }
+
+            List<String> key = getKey(request);
+
+            Entry entry = get(key);
+
+            if (entry != null) {
+                hits.incrementAndGet();
+            } else {
+                misses.incrementAndGet();
+
+                HTTPResponse response = endpoint.HandleRequest(request);
+
+                if (response.getStatus() != HTTPStatusCode.OK || response.isStreamed()) {
+                    return response;
+                }
+
+                String etag = etag(response.getContent());
+
+                response.setHeader("ETag", etag);
+
+                // leaves room for the compressed copies, which are smaller
+                entry = new Entry(response.copy(), etag, System.nanoTime() + policy.ttl,
+                        ENTRY_OVERHEAD + 2L * response.getContent().length);
+
+                put(key, entry);
+            }
+
+            HTTPResponse encoded = getEncoded(entry, request);
+
+            if (matches(request, entry.etag)) {
+                not_modified.incrementAndGet();
+                return notModified(encoded.getHeader("ETag"));
+            }
+
+            // the server adds connection headers, so every request gets its own copy
+            return encoded.copy();
+        }
+
+        private HTTPResponse getEncoded(Entry entry, HTTPRequest request) {
+            String encoding = compressor == null ? null
+                    : ResponseCompressor.negotiate(request.getHeader("Accept-Encoding"), ResponseCompressor.ENCODINGS);
+
+            if (encoding == null) {
+                encoding = "identity";
+            }
+
+            HTTPResponse encoded = entry.encoded.get(encoding);
+
+            if (encoded == null) {
+                encoded = entry.response.copy();
+
+                if (compressor != null) {
+                    compressor.compressOnce(request, encoded);
+                }
+
+                if (vary != null) {
+                    String previous = encoded.getHeader("Vary");
+                    encoded.setHeader("Vary", previous == null ? vary : previous + ", " + vary);
+                }
+
+                // two threads may both compress it, either copy is correct
+                HTTPResponse raced = entry.encoded.putIfAbsent(encoding, encoded);
+
+                if (raced != null) {
+                    encoded = raced;
+                }
+            }
+
+            return encoded;
+        }
+
+        private List<String> getKey(HTTPRequest request) {
+            String[] key = new String[1 + policy.query.length + policy.headers.length];
+            int i = 0;
+
+            // the path rather than the endpoint's name, which may have parameters
+            key[i++] = request.getResource();
+
+            for (String name : policy.query) {
+                key[i++] = request.getQueryValue(name);
+            }
+
+            for (String name : policy.headers) {
+                key[i++] = request.getHeader(name);
+            }
+
+            return Arrays.asList(key);
+        }
+
+    }
+
+}
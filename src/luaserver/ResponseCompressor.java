@@ -0,0 +1,373 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package luaserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import luaserver.HTTPHelpers.HTTPRequest;
+import luaserver.HTTPHelpers.HTTPResponse;
+import luaserver.HTTPHelpers.HTTPStatusCode;
+
+/**
+ * Compresses responses with gzip or deflate, whichever the client prefers
+ * in its {@code Accept-Encoding}. Only text-like content types are
+ * compressed, and content shorter than the minimum size is sent as it is,
+ * compressing it would cost more time than it saves.
+ * <p>
+ * Content is compressed as it is written and sent chunked, so a response
+ * is never held in memory twice. Responses which are sent many times, such
+ * as cached ones, are compressed once into a new array with
+ * {@link #compressOnce} instead, and keep their {@code Content-Length}, as
+ * are responses to clients older than HTTP/1.1, which can not read chunks.
+ * <p>
+ * A response whose {@code Vary} already lists {@code Accept-Encoding} was
+ * encoded for the client by whoever made it, such as resource files (which
+ * keep a compressed copy, or go out with {@code transferTo}) and cached
+ * responses (which keep one for every encoding), and is not touched again.
+ *
+ * @author azalac
+ */
+public class ResponseCompressor {
+
+    public static final int DEFAULT_MIN_SIZE = 1024;
+
+    public static final int DEFAULT_LEVEL = 6;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    // in the order they are preferred when the client has no preference
+    static final String[] ENCODINGS = {"gzip", "deflate"};
+
+    private final int min_size;
+    private final int level;
+
+    /**
+     * @param min_size the smallest content which is compressed, in bytes
+     * @param level the deflate level, 1 (fastest) to 9 (smallest)
+     */
+    public ResponseCompressor(int min_size, int level) {
+        this.min_size = min_size;
+        this.level = level;
+    }
+
+    public int getMinSize() {
+        return min_size;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Reads {@code compression}, {@code compression.min_size} and
+     * {@code compression.level}.
+     *
+     * @return the compressor, or null if responses are sent uncompressed
+     */
+    public static ResponseCompressor fromProperties(Properties properties) {
+        if (!Boolean.parseBoolean(properties.getProperty("compression", "true").trim())) {
+            return null;
+        }
+
+        return new ResponseCompressor(
+                Integer.parseInt(properties.getProperty("compression.min_size", Integer.toString(DEFAULT_MIN_SIZE))),
+                Integer.parseInt(properties.getProperty("compression.level", Integer.toString(DEFAULT_LEVEL))));
+    }
+
+    /**
+     * Compresses the response if the client accepts it and it is worth it.
+     * Responses which already have a {@code Content-Encoding}, partial
+     * content and responses without content are left alone.
+     *
+     * @return the response, compressed or not
+     */
+    public HTTPResponse compress(HTTPRequest request, HTTPResponse response) {
+        return compress(request, response, false);
+    }
+
+    /**
+     * Compresses the response like {@link #compress(HTTPRequest, HTTPResponse)},
+     * but content held in memory is replaced by its compressed bytes, for
+     * responses which are kept and sent again.
+     *
+     * @return the response, compressed or not
+     */
+    public HTTPResponse compressOnce(HTTPRequest request, HTTPResponse response) {
+        return compress(request, response, true);
+    }
+
+    private HTTPResponse compress(HTTPRequest request, HTTPResponse response, boolean once) {
+        HTTPStatusCode status = response.getStatus();
+
+        if (status == HTTPStatusCode.NOT_MODIFIED || status == HTTPStatusCode.NO_CONTENT
+                || status == HTTPStatusCode.PARTIAL_CONTENT || response.getHeader("Content-Encoding") != null
+                || !isCompressible(response.getHeader("Content-Type")) || isNegotiated(response)) {
+            return response;
+        }
+
+        // caches must not hand a compressed response to a client which can not read it
+        addVary(response);
+
+        String encoding = negotiate(request.getHeader("Accept-Encoding"), ENCODINGS);
+
+        if (encoding == null) {
+            return response;
+        }
+
+        if (response.isStreamed()) {
+            String length = response.getHeader("Content-Length");
+
+            if (length != null && Long.parseLong(length) < min_size) {
+                return response;
+            }
+
+            response.setBody(new CompressedBody(response.getBody(), encoding));
+        } else {
+            byte[] content = response.getContent();
+
+            if (content.length < min_size) {
+                return response;
+            }
+
+            // chunked encoding is HTTP/1.1 only, other clients would need the connection closed
+            if (once || !"HTTP/1.1".equals(request.getVersion())) {
+                byte[] compressed = compress(content, encoding, level);
+
+                // already compressed data, such as an embedded image
+                if (compressed.length >= content.length) {
+                    return response;
+                }
+
+                response.setContent(compressed);
+            } else {
+                response.setBody(new CompressedBody(new ContentBody(content), encoding));
+            }
+        }
+
+        response.setHeader("Content-Encoding", encoding);
+
+        // the bytes changed, but they still mean the same thing
+        String etag = response.getHeader("ETag");
+
+        if (etag != null && !etag.startsWith("W/")) {
+            response.setHeader("ETag", "W/" + etag);
+        }
+
+        return response;
+    }
+
+    /**
+     * Compresses content held in memory.
+     *
+     * @param encoding gzip or deflate
+     */
+    public static byte[] compress(byte[] content, String encoding, int level) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 4);
+
+        try (DeflaterOutputStream deflate = open(out, encoding, level)) {
+            deflate.write(content);
+        } catch (IOException ex) {
+            throw new AssertionError("Writing to memory can not fail", ex);
+        }
+
+        return out.toByteArray();
+    }
+
+    private static DeflaterOutputStream open(OutputStream out, String encoding, int level) throws IOException {
+        if (encoding.equals("gzip")) {
+            return new GZIPOutputStream(out, BUFFER_SIZE) {
+                {
+                    def.setLevel(level);
+                }
+            };
+        }
+
+        // deflate in HTTP means the zlib format, which is what DeflaterOutputStream writes
+        return new DeflaterOutputStream(out, new Deflater(level), BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    def.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return true for text, JSON, javascript, XML and SVG
+     */
+    public static boolean isCompressible(String type) {
+        if (type == null) {
+            return false;
+        }
+
+        type = type.toLowerCase(Locale.ROOT);
+
+        int parameters = type.indexOf(';');
+
+        if (parameters >= 0) {
+            type = type.substring(0, parameters).trim();
+        }
+
+        return type.startsWith("text/") || type.endsWith("+json") || type.endsWith("+xml")
+                || type.equals("application/json") || type.equals("application/javascript")
+                || type.equals("application/xml") || type.equals("application/text");
+    }
+
+    /**
+     * Picks the supported encoding the client prefers. Encodings the client
+     * gives the same weight are preferred in the order they are passed.
+     *
+     * @param header the request's {@code Accept-Encoding}, may be null
+     * @return the encoding, or null to send the content as it is
+     */
+    public static String negotiate(String header, String... supported) {
+        if (header == null) {
+            return null;
+        }
+
+        double[] weights = new double[supported.length];
+        double wildcard = -1;
+
+        for (String part : header.split(",")) {
+            String[] fields = part.split(";");
+            String name = fields[0].trim().toLowerCase(Locale.ROOT);
+            double weight = 1;
+
+            for (int i = 1; i < fields.length; i++) {
+                String field = fields[i].trim();
+
+                if (field.startsWith("q=")) {
+                    try {
+                        weight = Double.parseDouble(field.substring(2));
+                    } catch (NumberFormatException ex) {
+                        weight = 0;
+                    }
+                }
+            }
+
+            if (name.equals("*")) {
+                wildcard = weight;
+                continue;
+            }
+
+            for (int i = 0; i < supported.length; i++) {
+                if (supported[i].equals(name)) {
+                    // marks it as named, so the wildcard does not apply to it
+                    weights[i] = weight + 1;
+                }
+            }
+        }
+
+        String best = null;
+        double best_weight = 0;
+
+        for (int i = 0; i < supported.length; i++) {
+            double weight = weights[i] > 0 ? weights[i] - 1 : wildcard;
+
+            if (weight > best_weight) {
+                best = supported[i];
+                best_weight = weight;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Adds {@code Accept-Encoding} to the response's {@code Vary}.
+     */
+    public static void addVary(HTTPResponse response) {
+        String vary = response.getHeader("Vary");
+
+        if (vary == null) {
+            response.setHeader("Vary", "Accept-Encoding");
+        } else if (!isNegotiated(response)) {
+            response.setHeader("Vary", vary + ", Accept-Encoding");
+        }
+    }
+
+    /**
+     * @return true if the response's {@code Vary} lists {@code Accept-Encoding}
+     */
+    public static boolean isNegotiated(HTTPResponse response) {
+        String vary = response.getHeader("Vary");
+
+        return vary != null && vary.toLowerCase(Locale.ROOT).contains("accept-encoding");
+    }
+
+    /**
+     * Content held in memory, written as it is.
+     */
+    private static class ContentBody implements HTTPResponse.Body {
+
+        private final byte[] content;
+
+        public ContentBody(byte[] content) {
+            this.content = content;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(content);
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    /**
+     * Compresses a streamed body while it is written.
+     */
+    private class CompressedBody implements HTTPResponse.Body {
+
+        private final HTTPResponse.Body body;
+        private final String encoding;
+
+        public CompressedBody(HTTPResponse.Body body, String encoding) {
+            this.body = body;
+            this.encoding = encoding;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            // the connection stays open for the next response
+            OutputStream unclosable = new FilterOutputStream(out) {
+                @Override
+                public void write(byte[] bytes, int offset, int length) throws IOException {
+                    out.write(bytes, offset, length);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            };
+
+            try (DeflaterOutputStream deflate = open(unclosable, encoding, level)) {
+                body.writeTo(deflate);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            body.close();
+        }
+
+    }
+
+}
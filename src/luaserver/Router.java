@@ -0,0 +1,245 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package luaserver;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds the endpoint for a request path. Endpoint names are compiled into a
+ * tree of path segments. A name is made of:
+ * <ul>
+ * <li>literal segments, {@code /user/friends}</li>
+ * <li>parameters, {@code /user/{id}}, which match any one non-empty segment
+ * and capture it under their name</li>
+ * <li>a final {@code *}, {@code /static/*}, which matches the rest of the
+ * path, captured under {@code *}</li>
+ * </ul>
+ * Literal segments are tried before parameters, and parameters before
+ * wildcards. Captured values are not percent-decoded, the same as query
+ * values.
+ * <p>
+ * When no literal segment shares a position with a parameter, a lookup
+ * follows a single branch and takes time proportional to the length of the
+ * path, not the number of endpoints. Otherwise a literal branch which leads
+ * nowhere is abandoned for the parameter. Every node stands for one segment
+ * at one position, so no node is visited twice: the worst case is the
+ * number of nodes within the path's depth, which grows with the endpoints
+ * sharing its prefix, not exponentially with the number of segments.
+ * <p>
+ * A router is never modified once built, adding an endpoint builds a new
+ * one.
+ *
+ * @author azalac
+ */
+public class Router {
+
+    /**
+     * An endpoint and the values its parameters captured.
+     */
+    public static class Match {
+
+        private final LuaEndpoint endpoint;
+        private final Map<String, String> values;
+
+        private Match(LuaEndpoint endpoint, Map<String, String> values) {
+            this.endpoint = endpoint;
+            this.values = values;
+        }
+
+        public LuaEndpoint getEndpoint() {
+            return endpoint;
+        }
+
+        public Map<String, String> getValues() {
+            return values;
+        }
+
+    }
+
+    private static class Node {
+
+        private final HashMap<String, Node> children = new HashMap<>();
+
+        // any one segment, there is a single parameter name per position
+        private Node parameter;
+        private String parameter_name;
+
+        // the endpoint whose name ends here, and the one which ends in * here
+        private LuaEndpoint endpoint, wildcard;
+
+    }
+
+    private final Node root = new Node();
+
+    // by name, later endpoints replace earlier ones
+    private final LinkedHashMap<String, LuaEndpoint> endpoints = new LinkedHashMap<>();
+
+    public Router(Collection<LuaEndpoint> endpoints) {
+        for (LuaEndpoint endpoint : endpoints) {
+            this.endpoints.put(endpoint.getResourceName(), endpoint);
+        }
+
+        for (LuaEndpoint endpoint : this.endpoints.values()) {
+            try {
+                add(endpoint);
+            } catch (IllegalArgumentException ex) {
+                Logger.getLogger(Router.class.getName()).log(Level.SEVERE, "Could not route endpoint {0}: {1}",
+                        new Object[]{endpoint.getResourceName(), ex.getMessage()});
+            }
+        }
+    }
+
+    /**
+     * @return a router with every endpoint of this one and the given one
+     */
+    public Router with(LuaEndpoint endpoint) {
+        ArrayList<LuaEndpoint> added = new ArrayList<>(endpoints.values());
+        added.add(endpoint);
+        return new Router(added);
+    }
+
+    public Collection<LuaEndpoint> getEndpoints() {
+        return Collections.unmodifiableCollection(endpoints.values());
+    }
+
+    private void add(LuaEndpoint endpoint) {
+        String name = endpoint.getResourceName();
+
+        if (!name.startsWith("/")) {
+            throw new IllegalArgumentException("Endpoint names must start with /");
+        }
+
+        String[] segments = name.substring(1).split("/", -1);
+        Node node = root;
+
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+
+            if (segment.equals("*")) {
+                if (i != segments.length - 1) {
+                    throw new IllegalArgumentException("* must be the last segment");
+                }
+
+                node.wildcard = endpoint;
+                return;
+            }
+
+            if (segment.startsWith("{") && segment.endsWith("}")) {
+                String parameter = segment.substring(1, segment.length() - 1);
+
+                if (parameter.isEmpty()) {
+                    throw new IllegalArgumentException("Parameters must be named");
+                }
+
+                if (node.parameter == null) {
+                    node.parameter = new Node();
+                    node.parameter_name = parameter;
+                } else if (!node.parameter_name.equals(parameter)) {
+                    throw new IllegalArgumentException("{" + parameter + "} conflicts with {"
+                            + node.parameter_name + "} at the same position");
+                }
+
+                node = node.parameter;
+            } else {
+                node = node.children.computeIfAbsent(segment, s -> new Node());
+            }
+        }
+
+        node.endpoint = endpoint;
+    }
+
+    /**
+     * @param path the request path, without the query string
+     * @return the endpoint and captured values, or null if nothing matches
+     */
+    public Match match(String path) {
+        if (!path.startsWith("/")) {
+            return null;
+        }
+
+        // names and values, alternating
+        ArrayList<String> captured = new ArrayList<>(4);
+
+        LuaEndpoint endpoint = match(root, path, 1, captured);
+
+        if (endpoint == null) {
+            return null;
+        }
+
+        if (captured.isEmpty()) {
+            return new Match(endpoint, Collections.emptyMap());
+        }
+
+        HashMap<String, String> values = new HashMap<>();
+
+        for (int i = 0; i < captured.size(); i += 2) {
+            values.put(captured.get(i), captured.get(i + 1));
+        }
+
+        return new Match(endpoint, Collections.unmodifiableMap(values));
+    }
+
+    /**
+     * Depth first, literal child then parameter then wildcard. Each node is
+     * only reached through its parent, so it is entered at most once.
+     *
+     * @param start where the next segment begins, past the end once every
+     * segment has been matched
+     */
+    private static LuaEndpoint match(Node node, String path, int start, ArrayList<String> captured) {
+        if (start > path.length()) {
+            return node.endpoint;
+        }
+
+        int end = path.indexOf('/', start);
+
+        if (end < 0) {
+            end = path.length();
+        }
+
+        String segment = path.substring(start, end);
+
+        Node child = node.children.get(segment);
+
+        if (child != null) {
+            LuaEndpoint endpoint = match(child, path, end + 1, captured);
+
+            if (endpoint != null) {
+                return endpoint;
+            }
+        }
+
+        if (node.parameter != null && !segment.isEmpty()) {
+            captured.add(node.parameter_name);
+            captured.add(segment);
+
+            LuaEndpoint endpoint = match(node.parameter, path, end + 1, captured);
+
+            if (endpoint != null) {
+                return endpoint;
+            }
+
+            captured.remove(captured.size() - 1);
+            captured.remove(captured.size() - 1);
+        }
+
+        if (node.wildcard != null) {
+            captured.add("*");
+            captured.add(path.substring(start));
+            return node.wildcard;
+        }
+
+        return null;
+    }
+
+}
@@ -0,0 +1,252 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package luaserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaFunction;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.luajc.LuaJC;
+
+/**
+ * Compiles endpoint scripts to JVM bytecode with LuaJ's luajc, so HotSpot can
+ * JIT the handlers instead of them being interpreted. Compiled classes are
+ * written to a cache directory named after a hash of the script, so a
+ * restart only compiles scripts which changed. Every Lua state shares the
+ * classes, each gets its own instance of the compiled chunk.
+ *
+ * @author azalac
+ */
+public class ScriptCompiler {
+
+    // bump when the layout of the cache changes
+    private static final String CACHE_VERSION = "1";
+
+    private static final String CLASS_PREFIX = "endpoint_";
+
+    private final Path cache;
+
+    private final ConcurrentHashMap<String, ScriptClassLoader> loaded = new ConcurrentHashMap<>();
+
+    private final AtomicLong compiled = new AtomicLong();
+    private final AtomicLong cache_hits = new AtomicLong();
+
+    public ScriptCompiler(Path cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Reads {@code lua.compile}, either {@code interpret} or {@code luajc},
+     * and {@code lua.compile.cache}, the directory compiled classes are kept
+     * in.
+     *
+     * @return the compiler, or null if scripts should be interpreted
+     */
+    public static ScriptCompiler fromProperties(Properties properties) {
+        String compile = properties.getProperty("lua.compile", "interpret").trim().toLowerCase();
+
+        switch (compile) {
+            case "luajc":
+                return new ScriptCompiler(Paths.get(properties.getProperty("lua.compile.cache", "luajc-cache")));
+            case "interpret":
+                return null;
+            default:
+                throw new IllegalArgumentException("Unknown lua compile mode " + compile);
+        }
+    }
+
+    /**
+     * Loads a script as compiled bytecode, compiling it if no state has
+     * loaded the same script yet and it is not in the cache directory.
+     *
+     * @param file the script
+     * @param globals the globals the chunk runs with
+     * @return the main chunk, ready to be called like
+     * {@link Globals#loadfile}'s result
+     */
+    public LuaValue load(Path file, Globals globals) throws IOException {
+        byte[] source = Files.readAllBytes(file);
+        String hash = hash(source);
+
+        ScriptClassLoader loader;
+
+        try {
+            loader = loaded.computeIfAbsent(hash, h -> {
+                try {
+                    return new ScriptClassLoader(getClasses(h, source, file, globals));
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+
+        try {
+            LuaFunction chunk = (LuaFunction) loader.loadClass(CLASS_PREFIX + hash).newInstance();
+            chunk.initupvalue1(globals);
+            return chunk;
+        } catch (ClassNotFoundException | InstantiationException | IllegalAccessException ex) {
+            throw new IOException("Compiled classes for " + file + " are incomplete", ex);
+        }
+    }
+
+    /**
+     * Forgets the compiled classes of every script which is not one of the
+     * given files any more. States which still run an old version keep its
+     * classes alive until they are dropped.
+     */
+    public void retain(Collection<Path> files) throws IOException {
+        HashSet<String> current = new HashSet<>();
+
+        for (Path file : files) {
+            current.add(hash(Files.readAllBytes(file)));
+        }
+
+        loaded.keySet().retainAll(current);
+    }
+
+    /**
+     * @return the number of scripts compiled since startup
+     */
+    public long getCompiled() {
+        return compiled.get();
+    }
+
+    /**
+     * @return the number of scripts read from the cache directory
+     */
+    public long getCacheHits() {
+        return cache_hits.get();
+    }
+
+    private Map<String, byte[]> getClasses(String hash, byte[] source, Path file, Globals globals) throws IOException {
+        Path directory = cache.resolve(hash);
+
+        if (Files.isDirectory(directory)) {
+            cache_hits.incrementAndGet();
+            return readClasses(directory);
+        }
+
+        long pre = System.nanoTime();
+
+        @SuppressWarnings("unchecked")
+        Hashtable<String, byte[]> classes = LuaJC.instance.compileAll(new ByteArrayInputStream(source),
+                CLASS_PREFIX + hash, file.toString(), globals, false);
+
+        compiled.incrementAndGet();
+
+        Logger.getLogger(ScriptCompiler.class.getName()).log(Level.INFO, "Compiled {0} in {1} seconds",
+                new Object[]{file, (System.nanoTime() - pre) / 1e9});
+
+        writeClasses(directory, classes);
+
+        return classes;
+    }
+
+    private static Map<String, byte[]> readClasses(Path directory) throws IOException {
+        HashMap<String, byte[]> classes = new HashMap<>();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.class")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                classes.put(name.substring(0, name.length() - ".class".length()), Files.readAllBytes(file));
+            }
+        }
+
+        return classes;
+    }
+
+    /**
+     * Writes the classes to a temporary directory and moves it into place,
+     * so another server sharing the cache never sees half a script.
+     */
+    private static void writeClasses(Path directory, Map<String, byte[]> classes) throws IOException {
+        Files.createDirectories(directory.getParent());
+
+        Path temporary = Files.createTempDirectory(directory.getParent(), directory.getFileName() + ".");
+
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            Files.write(temporary.resolve(entry.getKey() + ".class"), entry.getValue());
+        }
+
+        try {
+            Files.move(temporary, directory, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException ex) {
+            // compiled by someone else in the meantime, theirs is identical
+            for (String name : classes.keySet()) {
+                Files.deleteIfExists(temporary.resolve(name + ".class"));
+            }
+            Files.deleteIfExists(temporary);
+        } catch (IOException ex) {
+            Logger.getLogger(ScriptCompiler.class.getName()).log(Level.WARNING, "Could not cache compiled script", ex);
+        }
+    }
+
+    private static String hash(byte[] source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+            String luaj = LuaValue.class.getPackage().getImplementationVersion();
+
+            digest.update((CACHE_VERSION + "/" + luaj + "/").getBytes());
+            digest.update(source);
+
+            StringBuilder hex = new StringBuilder();
+
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new AssertionError("SHA-256 is always available", ex);
+        }
+    }
+
+    private static class ScriptClassLoader extends ClassLoader {
+
+        private final Map<String, byte[]> classes;
+
+        public ScriptClassLoader(Map<String, byte[]> classes) {
+            super(LuaValue.class.getClassLoader());
+            this.classes = classes;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] bytes = classes.get(name);
+
+            if (bytes == null) {
+                throw new ClassNotFoundException(name);
+            }
+
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+
+    }
+
+}
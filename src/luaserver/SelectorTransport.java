@@ -0,0 +1,648 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package luaserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import luaserver.HTTPHelpers.HTTPRequest;
+import luaserver.HTTPHelpers.HTTPResponse;
+import luaserver.HTTPHelpers.HTTPStatusCode;
+import luaserver.ServerManager.InvalidHTTPException;
+
+/**
+ * Non-blocking transport for {@link ServerManager}. Every connection is
+ * multiplexed onto one selector thread, which reads and parses requests and
+ * writes responses. Only complete requests are handed to the worker pool, so
+ * an idle keep-alive connection costs a selection key instead of a thread.
+ * <p>
+ * Responses held in memory and files ({@link HTTPResponse.TransferableBody})
+ * are written by the selector thread as the client takes them. Other
+ * streamed bodies can only be produced by blocking, so the worker which
+ * handled the request writes them into a few buffers at a time, which the
+ * selector thread sends on. The body is never held in memory as a whole.
+ *
+ * @author azalac
+ */
+class SelectorTransport implements Runnable {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final int MAX_POOLED_BUFFERS = 256;
+
+    // buffers of a streamed body written by a worker and not yet sent
+    private static final int PIPE_BUFFERS = 4;
+
+    private final ServerManager server;
+    private final ServerSocketChannel channel;
+
+    private Selector selector;
+
+    // work handed back to the selector thread by the workers
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    // read buffers of connections with no unparsed bytes, only touched by the selector thread
+    private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+
+    private final AtomicInteger open_connections = new AtomicInteger();
+
+    public SelectorTransport(ServerManager server, ServerSocketChannel channel) {
+        this.server = server;
+        this.channel = channel;
+    }
+
+    public int getOpenConnections() {
+        return open_connections.get();
+    }
+
+    @Override
+    public void run() {
+        try {
+            selector = Selector.open();
+
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException ex) {
+            Logger.getLogger(SelectorTransport.class.getName()).log(Level.SEVERE, "Could not open selector", ex);
+            return;
+        }
+
+        long last_sweep = System.nanoTime();
+
+        try {
+            while (!Thread.interrupted() && channel.isOpen()) {
+
+                selector.select(1000);
+
+                for (Runnable task; (task = tasks.poll()) != null;) {
+                    task.run();
+                }
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+
+                        if (key.isReadable()) {
+                            connection.read();
+                        } else if (key.isWritable()) {
+                            connection.write();
+                        }
+                    }
+                }
+
+                selector.selectedKeys().clear();
+
+                if (System.nanoTime() - last_sweep > 1_000_000_000L) {
+                    closeIdle();
+                    last_sweep = System.nanoTime();
+                }
+            }
+        } catch (IOException | ClosedSelectorException ex) {
+            Logger.getLogger(SelectorTransport.class.getName()).log(Level.SEVERE, "Selector failed", ex);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                Logger.getLogger(SelectorTransport.class.getName()).log(Level.WARNING, "Could not close selector", ex);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel client;
+
+        while ((client = channel.accept()) != null) {
+            client.configureBlocking(false);
+
+            Connection connection = new Connection(client, client.getRemoteAddress());
+            connection.key = client.register(selector, SelectionKey.OP_READ, connection);
+
+            open_connections.incrementAndGet();
+
+            Logger.getLogger(SelectorTransport.class.getName()).log(Level.FINE,
+                    "Accepted connection from {0}", connection.remote);
+        }
+    }
+
+    /**
+     * Closes connections which have waited longer than the keep-alive timeout
+     * for their next request, and connections whose client has not taken any
+     * of their response for as long. Connections with a request in a worker,
+     * or waiting for a worker to produce more of a body, are left alone.
+     */
+    private void closeIdle() {
+        long timeout = server.getKeepAliveTimeout() * 1_000_000_000L;
+        long now = System.nanoTime();
+
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                Connection connection = (Connection) key.attachment();
+
+                boolean waiting = !connection.busy
+                        || key.isValid() && (key.interestOps() & SelectionKey.OP_WRITE) != 0;
+
+                if (waiting && now - connection.last_active > timeout) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    private ByteBuffer takeBuffer() {
+        ByteBuffer buffer = buffers.poll();
+        return buffer == null ? ByteBuffer.allocate(BUFFER_SIZE) : buffer;
+    }
+
+    private void releaseBuffer(ByteBuffer buffer) {
+        if (buffers.size() < MAX_POOLED_BUFFERS) {
+            buffer.clear();
+            buffers.push(buffer);
+        }
+    }
+
+    private class Connection {
+
+        private final SocketChannel client;
+        private final SocketAddress remote;
+        private SelectionKey key;
+
+        // bytes read but not yet parsed, null while the connection has none
+        private ByteBuffer input;
+
+        private final HTTPParser parser = server.newParser();
+
+        // the head and content being written
+        private ByteBuffer[] output;
+
+        // a file being written after the head, and how much of it was
+        private HTTPResponse.TransferableBody transfer;
+        private long transferred;
+
+        // a body a worker is writing, sent as its buffers fill
+        private Pipe pipe;
+
+        // the response whose body is being written, closed once it has been
+        private HTTPResponse sending;
+
+        private boolean keepalive;
+
+        private int served;
+
+        // the last read, or the last write which made progress while a response is being sent
+        private long last_active = System.nanoTime();
+
+        // a worker is handling a request from this connection
+        private volatile boolean busy;
+
+        public Connection(SocketChannel client, SocketAddress remote) {
+            this.client = client;
+            this.remote = remote;
+        }
+
+        private void read() {
+            if (input == null) {
+                input = takeBuffer();
+            }
+
+            try {
+                if (client.read(input) == -1) {
+                    close();
+                    return;
+                }
+            } catch (IOException ex) {
+                close();
+                return;
+            }
+
+            last_active = System.nanoTime();
+
+            parse();
+        }
+
+        /**
+         * Tries to take a complete request out of the input, and hands it to a
+         * worker if there is one.
+         */
+        private void parse() {
+            HTTPRequest request;
+
+            try {
+                request = nextRequest();
+            } catch (InvalidHTTPException ex) {
+                respond(new HTTPResponse(ex.getStatus(), ex.getMessage()), false);
+                return;
+            }
+
+            if (request == null) {
+                return;
+            }
+
+            served++;
+
+            int number = served;
+            boolean persistent = ServerManager.isKeepAlive(request) && served < server.getKeepAliveMax();
+
+            // stop reading until the response has been written, requests on a connection are answered in order
+            busy = true;
+            key.interestOps(0);
+
+            try {
+                server.execute(() -> {
+                    HTTPResponse response;
+
+                    long pre = System.nanoTime();
+
+                    try {
+                        response = server.handleRequest(request);
+                    } catch (RuntimeException ex) {
+                        Logger.getLogger(SelectorTransport.class.getName()).log(Level.SEVERE, "Error while handling request", ex);
+                        response = new HTTPResponse(HTTPStatusCode.INTERNAL_SERVER_ERROR, "Error while handling request");
+                    }
+
+                    long delta = System.nanoTime() - pre;
+
+                    boolean keep = persistent;
+
+                    // without chunked encoding, the client can only find the end of a body of unknown length by the connection closing
+                    if (response.isChunked() && !"HTTP/1.1".equals(request.getVersion())) {
+                        response.setChunked(false);
+                        keep = false;
+                    }
+
+                    server.log(remote, request, response, delta);
+
+                    if (response.isStreamed() && (response.isChunked() || !(response.getBody() instanceof HTTPResponse.TransferableBody))) {
+                        stream(response, keep, number);
+                        return;
+                    }
+
+                    HTTPResponse finished = response;
+                    boolean finished_keep = keep;
+
+                    tasks.add(() -> respond(finished, finished_keep));
+                    selector.wakeup();
+                });
+            } catch (RejectedExecutionException ex) {
+                respond(new HTTPResponse(HTTPStatusCode.SERVICE_UNAVAILABLE, "Server is busy"), false);
+            }
+        }
+
+        /**
+         * Feeds the input to the parser. The parser copies what it needs, so
+         * the buffer only ever holds bytes from a single read plus anything
+         * pipelined behind a complete request.
+         */
+        private HTTPRequest nextRequest() throws InvalidHTTPException {
+            input.flip();
+
+            HTTPRequest request;
+
+            try {
+                request = parser.parse(input);
+            } finally {
+                input.compact();
+            }
+
+            if (input.position() == 0) {
+                releaseBuffer(input);
+                input = null;
+            }
+
+            return request;
+        }
+
+        private void respond(HTTPResponse response, boolean persistent) {
+            if (!client.isOpen()) {
+                response.close();
+                return;
+            }
+
+            busy = true;
+
+            server.setConnectionHeaders(response, persistent, served);
+
+            if (response.isStreamed()) {
+                output = new ByteBuffer[]{response.getHead()};
+                transfer = (HTTPResponse.TransferableBody) response.getBody();
+                transferred = 0;
+                sending = response;
+            } else {
+                output = response.getBuffers();
+            }
+
+            keepalive = persistent;
+            last_active = System.nanoTime();
+
+            write();
+        }
+
+        /**
+         * Writes a body on the worker, which blocks whenever the client is
+         * {@value #PIPE_BUFFERS} buffers behind. Runs on the worker.
+         */
+        private void stream(HTTPResponse response, boolean persistent, int number) {
+            Pipe body = new Pipe(this);
+
+            server.setConnectionHeaders(response, persistent, number);
+
+            tasks.add(() -> {
+                if (!client.isOpen()) {
+                    body.closed = true;
+                    return;
+                }
+
+                pipe = body;
+                keepalive = persistent;
+                last_active = System.nanoTime();
+
+                write();
+            });
+            selector.wakeup();
+
+            try {
+                response.write(body);
+                body.finish();
+            } catch (IOException | RuntimeException ex) {
+                // the head is gone, so all the client can be told is that the connection closed
+                Logger.getLogger(SelectorTransport.class.getName()).log(body.closed ? Level.FINE : Level.SEVERE,
+                        "Could not write response body", ex);
+                body.fail();
+            } finally {
+                response.close();
+            }
+        }
+
+        /**
+         * Writes as much of the response as the client takes, and waits for
+         * {@link SelectionKey#OP_WRITE} or the worker for the rest.
+         */
+        private void write() {
+            try {
+                if (output != null) {
+                    if (client.write(output) > 0) {
+                        last_active = System.nanoTime();
+                    }
+
+                    if (HTTPResponse.hasRemaining(output)) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+
+                    output = null;
+                }
+
+                if (transfer != null) {
+                    while (transferred < transfer.getLength()) {
+                        long sent = transfer.transferTo(transferred, client);
+
+                        if (sent == 0) {
+                            key.interestOps(SelectionKey.OP_WRITE);
+                            return;
+                        }
+
+                        transferred += sent;
+                        last_active = System.nanoTime();
+                    }
+
+                    transfer = null;
+                    sending.close();
+                    sending = null;
+                }
+
+                while (pipe != null) {
+                    ByteBuffer buffer = pipe.full.peek();
+
+                    if (buffer != null) {
+                        if (client.write(buffer) > 0) {
+                            last_active = System.nanoTime();
+                        }
+
+                        if (buffer.hasRemaining()) {
+                            key.interestOps(SelectionKey.OP_WRITE);
+                            return;
+                        }
+
+                        pipe.full.poll();
+                        pipe.recycle(buffer);
+                    } else if (pipe.failed) {
+                        close();
+                        return;
+                    } else if (pipe.finished) {
+                        // the worker sets finished after handing its last buffer, which may have come since
+                        if (pipe.full.isEmpty()) {
+                            pipe = null;
+                        }
+                    } else {
+                        // the worker wakes the connection up when it hands the next buffer
+                        pipe.waiting.set(true);
+
+                        if (pipe.full.isEmpty() && !pipe.finished && !pipe.failed) {
+                            key.interestOps(0);
+                            return;
+                        }
+
+                        pipe.waiting.set(false);
+                    }
+                }
+            } catch (IOException ex) {
+                close();
+                return;
+            }
+
+            busy = false;
+
+            if (!keepalive) {
+                close();
+                return;
+            }
+
+            key.interestOps(SelectionKey.OP_READ);
+
+            // the client may have pipelined its next request behind this one
+            if (input != null) {
+                parse();
+            }
+        }
+
+        private void close() {
+            if (!client.isOpen()) {
+                return;
+            }
+
+            key.cancel();
+
+            if (sending != null) {
+                sending.close();
+                sending = null;
+            }
+
+            // a worker still writing the body gives up
+            if (pipe != null) {
+                pipe.closed = true;
+                pipe = null;
+            }
+
+            try {
+                client.close();
+            } catch (IOException ex) {
+                Logger.getLogger(SelectorTransport.class.getName()).log(Level.WARNING, "Could not close client", ex);
+            }
+
+            if (input != null) {
+                releaseBuffer(input);
+                input = null;
+            }
+
+            open_connections.decrementAndGet();
+        }
+
+    }
+
+    /**
+     * Carries a body from the worker writing it to the selector thread, a
+     * buffer at a time.
+     */
+    private class Pipe extends OutputStream {
+
+        private final Connection connection;
+
+        // written by the worker, sent and emptied by the selector thread
+        private final ArrayBlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<>(PIPE_BUFFERS);
+
+        // sent buffers, ready to be filled again
+        private final ConcurrentLinkedQueue<ByteBuffer> empty = new ConcurrentLinkedQueue<>();
+
+        private ByteBuffer current;
+
+        private volatile boolean finished, failed;
+
+        // the selector thread ran out of buffers and waits for the next one
+        private final AtomicBoolean waiting = new AtomicBoolean();
+
+        // the connection closed, the worker stops writing
+        private volatile boolean closed;
+
+        public Pipe(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (current == null) {
+                    current = empty.poll();
+
+                    if (current == null) {
+                        current = ByteBuffer.allocate(BUFFER_SIZE);
+                    }
+                }
+
+                int copied = Math.min(length, current.remaining());
+                current.put(bytes, offset, copied);
+
+                offset += copied;
+                length -= copied;
+
+                if (!current.hasRemaining()) {
+                    hand();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (current != null && current.position() > 0) {
+                hand();
+            }
+        }
+
+        private void hand() throws IOException {
+            ByteBuffer buffer = current;
+            current = null;
+
+            buffer.flip();
+
+            try {
+                while (!full.offer(buffer, 100, TimeUnit.MILLISECONDS)) {
+                    if (closed) {
+                        throw new IOException("Client closed the connection");
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing a response", ex);
+            }
+
+            if (closed) {
+                throw new IOException("Client closed the connection");
+            }
+
+            // the selector thread stopped writing when it ran out of buffers
+            if (waiting.compareAndSet(true, false)) {
+                wake();
+            }
+        }
+
+        private void recycle(ByteBuffer buffer) {
+            buffer.clear();
+            empty.add(buffer);
+        }
+
+        private void finish() throws IOException {
+            flush();
+            finished = true;
+            wake();
+        }
+
+        private void fail() {
+            failed = true;
+            wake();
+        }
+
+        private void wake() {
+            tasks.add(() -> {
+                if (connection.pipe == this) {
+                    connection.write();
+                }
+            });
+            selector.wakeup();
+        }
+
+    }
+
+}
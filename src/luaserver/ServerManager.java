@@ -5,20 +5,34 @@
  */
 package luaserver;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.PrintStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.stream.Stream;
 import luaserver.HTTPHelpers.HTTPRequest;
 import luaserver.HTTPHelpers.HTTPResponse;
@@ -35,13 +49,46 @@ public class ServerManager implements AutoCloseable, Runnable {
 
     private static final int DEFAULT_BACKLOG = 10;
 
+    private static final int DEFAULT_QUEUE_SIZE = 64;
+
+    private static final int DEFAULT_KEEPALIVE_TIMEOUT = 5;
+
+    private static final int DEFAULT_KEEPALIVE_MAX = 100;
+
     private ServerSocket socket;
     private Thread current_thread;
 
-    private static final Pattern HTTP_REQUEST_PATTERN
-            = Pattern.compile("^(?<method>\\w+)\\s+(?<request>[A-Za-z!#-;=?@\\[\\]_~]+)\\s+(?<version>\\w+\\/\\d+\\.\\d+)$");
+    private final ExecutorService workers;
+
+    // null when every connection runs on its own virtual thread
+    private final ArrayBlockingQueue<Runnable> queue;
+
+    private final int worker_count;
+
+    private final AtomicInteger active_workers = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final int keepalive_timeout, keepalive_max;
+
+    private final String transport;
+
+    private final int max_line, max_headers, max_content;
+
+    private final int max_json_size, max_json_depth;
 
-    private final HashMap<String, LuaEndpoint> endpoints = new HashMap<>();
+    // null when responses are sent uncompressed
+    private final ResponseCompressor compressor;
+
+    private final Metrics metrics = new Metrics();
+
+    // served alongside the script endpoints, null if metrics.path is empty
+    private final LuaEndpoint metrics_endpoint;
+
+    // null when requests are not logged
+    private final AccessLog access_log;
+
+    // never modified once published, changes swap in a whole new table
+    private final AtomicReference<Router> router = new AtomicReference<>(new Router(Collections.emptyList()));
 
     public ServerManager() throws IOException {
         this("127.0.0.1", 80);
@@ -52,15 +99,202 @@ public class ServerManager implements AutoCloseable, Runnable {
     }
 
     public ServerManager(String address, int port) throws IOException {
-        this(new ServerSocket(port, DEFAULT_BACKLOG, InetAddress.getByName(address)));
+        this(address, port, new Properties());
+    }
+
+    public ServerManager(String address, int port, Properties properties) throws IOException {
+        this(openChannel(address, port).socket(), properties);
     }
 
     public ServerManager(ServerSocket socket) {
+        this(socket, new Properties());
+    }
+
+    /**
+     * Creates a server which hands accepted connections to a fixed pool of
+     * workers. The pool is sized by {@code workers} (defaults to the number of
+     * cores) and {@code workers.queue}, the number of connections which may
+     * wait for a free worker before new ones are turned away with a 503.
+     * <p>
+     * Connections are kept open between requests for
+     * {@code keepalive.timeout} seconds, and at most {@code keepalive.max}
+     * requests are served on one connection.
+     * <p>
+     * {@code request.max_line}, {@code request.max_headers} and
+     * {@code request.max_content} limit the size of the request line, the
+     * header block and the content in bytes. Scripts decode JSON content of
+     * at most {@code request.max_json_size} bytes, nested at most
+     * {@code request.max_json_depth} levels deep.
+     * <p>
+     * Request counts, status codes and latencies of every endpoint are served
+     * in the Prometheus text format at {@code metrics.path}. It is empty, and
+     * nothing is served, by default: the endpoint has no access control, so
+     * it should only be set behind a proxy which keeps it private.
+     * <p>
+     * Every handled request is written to the file at {@code access_log},
+     * unless it is empty, by a background thread. At most
+     * {@code access_log.buffer} records wait to be written, later ones are
+     * dropped and counted.
+     * <p>
+     * Responses are compressed for clients which accept it unless
+     * {@code compression} is false. Content shorter than
+     * {@code compression.min_size} bytes is not compressed, and
+     * {@code compression.level} trades speed for size.
+     * <p>
+     * {@code transport} picks how connections are read: {@code blocking}
+     * gives every connection a worker for as long as it is open, {@code nio}
+     * multiplexes them on a selector and only takes a worker while a request
+     * is being handled. The nio transport needs a socket which was opened
+     * from a {@link ServerSocketChannel}.
+     * <p>
+     * With {@code execution = virtual}, the worker pool is replaced by a
+     * virtual thread per task (Java 21 and later), so blocking socket and
+     * JDBC calls park instead of holding a platform thread. Setting
+     * {@code virtual.trace_pinned} to {@code short} or {@code full} reports
+     * every virtual thread which blocks while pinned to its carrier.
+     *
+     * @param socket the socket to accept connections on
+     * @param properties the server configuration
+     */
+    public ServerManager(ServerSocket socket, Properties properties) {
         this.socket = socket;
+
+        keepalive_timeout = Integer.parseInt(properties.getProperty("keepalive.timeout",
+                Integer.toString(DEFAULT_KEEPALIVE_TIMEOUT)));
+
+        keepalive_max = Integer.parseInt(properties.getProperty("keepalive.max",
+                Integer.toString(DEFAULT_KEEPALIVE_MAX)));
+
+        max_line = Integer.parseInt(properties.getProperty("request.max_line",
+                Integer.toString(HTTPParser.DEFAULT_MAX_LINE)));
+
+        max_headers = Integer.parseInt(properties.getProperty("request.max_headers",
+                Integer.toString(HTTPParser.DEFAULT_MAX_HEADERS)));
+
+        max_content = Integer.parseInt(properties.getProperty("request.max_content",
+                Integer.toString(HTTPParser.DEFAULT_MAX_CONTENT)));
+
+        max_json_size = Integer.parseInt(properties.getProperty("request.max_json_size",
+                Integer.toString(LuaJsonReader.DEFAULT_MAX_SIZE)));
+
+        max_json_depth = Integer.parseInt(properties.getProperty("request.max_json_depth",
+                Integer.toString(LuaJsonReader.DEFAULT_MAX_DEPTH)));
+
+        compressor = ResponseCompressor.fromProperties(properties);
+
+        String metrics_path = properties.getProperty("metrics.path", "").trim();
+
+        metrics_endpoint = metrics_path.isEmpty() ? null : metrics.getEndpoint(metrics_path);
+
+        if (metrics_endpoint != null) {
+            router.set(new Router(Collections.singletonList(metrics_endpoint)));
+        }
+
+        String access_log_path = properties.getProperty("access_log", "").trim();
+        AccessLog log = null;
+
+        if (!access_log_path.isEmpty()) {
+            try {
+                log = AccessLog.open(Paths.get(access_log_path), Integer.parseInt(properties.getProperty(
+                        "access_log.buffer", Integer.toString(AccessLog.DEFAULT_CAPACITY))));
+
+                metrics.addCounter("access_log_dropped_total", "Access log records dropped because the buffer was full",
+                        log::getDropped);
+            } catch (IOException ex) {
+                Logger.getLogger(ServerManager.class.getName()).log(Level.SEVERE, "Could not open access log, requests will not be logged", ex);
+            }
+        }
+
+        access_log = log;
+
+        transport = properties.getProperty("transport", "blocking").trim().toLowerCase();
+
+        if (!transport.equals("blocking") && !transport.equals("nio")) {
+            throw new IllegalArgumentException("Unknown transport " + transport);
+        }
+
+        if (transport.equals("nio") && socket.getChannel() == null) {
+            throw new IllegalArgumentException("The nio transport needs a socket opened from a channel");
+        }
+
+        String execution = properties.getProperty("execution", "pool").trim().toLowerCase();
+
+        ExecutorService virtual = null;
+
+        if (execution.equals("virtual")) {
+            String trace = properties.getProperty("virtual.trace_pinned");
+
+            // only read when the first virtual thread is created, so this must happen before then
+            if (trace != null && System.getProperty("jdk.tracePinnedThreads") == null) {
+                System.setProperty("jdk.tracePinnedThreads", trace.trim());
+            }
+
+            virtual = newVirtualThreadExecutor();
+
+            if (virtual == null) {
+                Logger.getLogger(ServerManager.class.getName()).log(Level.WARNING,
+                        "Virtual threads are not supported by this JVM, using a worker pool instead");
+            }
+        } else if (!execution.equals("pool")) {
+            throw new IllegalArgumentException("Unknown execution mode " + execution);
+        }
+
+        if (virtual != null) {
+            workers = virtual;
+            queue = null;
+            worker_count = -1;
+        } else {
+            worker_count = Integer.parseInt(properties.getProperty("workers",
+                    Integer.toString(Runtime.getRuntime().availableProcessors())));
+
+            queue = new ArrayBlockingQueue<>(Integer.parseInt(properties.getProperty("workers.queue",
+                    Integer.toString(DEFAULT_QUEUE_SIZE))));
+
+            AtomicInteger thread_count = new AtomicInteger();
+
+            workers = new ThreadPoolExecutor(worker_count, worker_count, 0, TimeUnit.MILLISECONDS, queue,
+                    r -> new Thread(r, "LuaServer Worker-" + thread_count.incrementAndGet()));
+        }
+    }
+
+    /**
+     * Looks up {@code Executors.newThreadPerTaskExecutor} and
+     * {@code Thread.ofVirtual} reflectively, since the project still targets
+     * Java 8.
+     *
+     * @return an executor which starts a virtual thread per task, or null if
+     * the running JVM has no virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+
+            builder = Class.forName("java.lang.Thread$Builder$OfVirtual")
+                    .getMethod("name", String.class, long.class)
+                    .invoke(builder, "LuaServer Worker-", 1L);
+
+            ThreadFactory factory = (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+                    .getMethod("factory").invoke(builder);
+
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    private static ServerSocketChannel openChannel(String address, int port) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress(InetAddress.getByName(address), port), DEFAULT_BACKLOG);
+        return channel;
     }
 
     public void start() {
-        current_thread = new Thread(this, "LuaServer");
+        if (transport.equals("nio")) {
+            current_thread = new Thread(new SelectorTransport(this, socket.getChannel()), "LuaServer Selector");
+        } else {
+            current_thread = new Thread(this, "LuaServer");
+        }
 
         current_thread.start();
     }
@@ -68,17 +302,99 @@ public class ServerManager implements AutoCloseable, Runnable {
     public void stop() {
         current_thread.interrupt();
         current_thread = null;
+        workers.shutdown();
     }
 
     public void addEndpoint(LuaEndpoint endpoint) {
-        synchronized (endpoints) {
-            endpoints.put(endpoint.getResourceName(), endpoint);
+        router.updateAndGet(current -> current.with(endpoint));
+    }
+
+    /**
+     * Replaces every endpoint at once. Requests which already looked up an
+     * endpoint finish on it, requests after the swap only see the new ones.
+     */
+    public void setEndpoints(Collection<LuaEndpoint> replacement) {
+        ArrayList<LuaEndpoint> endpoints = new ArrayList<>();
+
+        // first, so a script endpoint of the same name replaces it
+        if (metrics_endpoint != null) {
+            endpoints.add(metrics_endpoint);
+        }
+
+        endpoints.addAll(replacement);
+
+        router.set(new Router(endpoints));
+    }
+
+    /**
+     * @return per endpoint counters and latencies, other parts of the server
+     * may register their own
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the number of accepted connections waiting for a worker, always
+     * 0 when running on virtual threads
+     */
+    public int getQueueDepth() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * @return the number of workers currently handling a connection
+     */
+    public int getActiveWorkers() {
+        return active_workers.get();
+    }
+
+    /**
+     * @return the size of the worker pool, or -1 when every connection runs
+     * on its own virtual thread
+     */
+    public int getWorkerCount() {
+        return worker_count;
+    }
+
+    /**
+     * @return the number of connections turned away because the queue was full
+     */
+    public long getRejectedConnections() {
+        return rejected.get();
+    }
+
+    HTTPParser newParser() {
+        return new HTTPParser(max_line, max_headers, max_content, max_json_size, max_json_depth);
+    }
+
+    int getKeepAliveTimeout() {
+        return keepalive_timeout;
+    }
+
+    int getKeepAliveMax() {
+        return keepalive_max;
+    }
+
+    /**
+     * Queues an access log record, if requests are logged.
+     *
+     * @param nanos how long producing the response took
+     */
+    void log(SocketAddress remote, HTTPRequest request, HTTPResponse response, long nanos) {
+        if (access_log != null) {
+            access_log.log(remote, request, response, nanos);
         }
     }
 
     @Override
     public void close() throws IOException {
         socket.close();
+        workers.shutdown();
+
+        if (access_log != null) {
+            access_log.close();
+        }
     }
 
     @Override
@@ -86,113 +402,226 @@ public class ServerManager implements AutoCloseable, Runnable {
 
         while (!Thread.interrupted()) {
 
-            try (
-                    Socket client = socket.accept();
-                    InputStream in = client.getInputStream();
-                    OutputStream out = client.getOutputStream();
-                    PrintStream ps = new PrintStream(out);) {
+            Socket client;
+
+            try {
+                client = socket.accept();
+            } catch (IOException ex) {
+                Logger.getLogger(ServerManager.class.getName()).log(Level.SEVERE, "Could not connect to client", ex);
+                continue;
+            }
+
+            try {
+                execute(() -> handleConnection(client));
+            } catch (RejectedExecutionException ex) {
+                reject(client);
+            }
+
+        }
+
+    }
+
+    /**
+     * Runs a task on the worker pool, counting it as active while it runs.
+     *
+     * @throws RejectedExecutionException if the queue is full
+     */
+    void execute(Runnable task) {
+        try {
+            workers.execute(() -> {
+                active_workers.incrementAndGet();
+
+                try {
+                    task.run();
+                } finally {
+                    active_workers.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            rejected.incrementAndGet();
+            throw ex;
+        }
+    }
+
+    private void handleConnection(Socket connection) {
+        try (
+                Socket client = connection;
+                InputStream in = client.getInputStream();
+                OutputStream out = client.getOutputStream();) {
 
-                Logger.getLogger(ServerManager.class.getName()).log(Level.INFO,
-                        "Accepted connection from {0}", client.getRemoteSocketAddress());
+            Logger.getLogger(ServerManager.class.getName()).log(Level.FINE,
+                    "Accepted connection from {0}", client.getRemoteSocketAddress());
+
+            client.setSoTimeout(keepalive_timeout * 1000);
+
+            // one parser per connection, so bytes it reads past the end of a
+            // request are still there for the next one
+            HTTPParser parser = newParser();
+
+            for (int served = 1; ; served++) {
+
+                HTTPRequest request;
+
+                try {
+                    request = parser.next(in);
+                } catch (InvalidHTTPException ex) {
+                    HTTPResponse response = new HTTPResponse(ex.status, ex.getMessage());
+                    setConnectionHeaders(response, false, served);
+                    send(client, out, response);
+                    break;
+                } catch (SocketTimeoutException ex) {
+                    // client stayed idle for longer than the keep-alive timeout
+                    break;
+                }
+
+                // client closed the connection between requests
+                if (request == null) {
+                    break;
+                }
 
                 long pre = System.nanoTime();
-                
-                String response = handleRequest(in).getLines();
+
+                boolean keepalive = isKeepAlive(request) && served < keepalive_max;
+
+                HTTPResponse response;
+
+                try {
+                    response = handleRequest(request);
+                } catch (RuntimeException ex) {
+                    // the client still gets an answer, as with the selector transport
+                    Logger.getLogger(ServerManager.class.getName()).log(Level.SEVERE, "Error while handling request", ex);
+                    response = new HTTPResponse(HTTPStatusCode.INTERNAL_SERVER_ERROR, "Error while handling request");
+                }
+
+                // without chunked encoding, the client can only find the end of a body of unknown length by the connection closing
+                if (response.isChunked() && !"HTTP/1.1".equals(request.getVersion())) {
+                    response.setChunked(false);
+                    keepalive = false;
+                }
+
+                setConnectionHeaders(response, keepalive, served);
 
                 long delta = System.nanoTime() - pre;
-                
-                ps.print(response);
 
-                Logger.getLogger(ServerManager.class.getName()).log(Level.INFO,
-                        "Finished in {0} seconds", delta / 1e9);
+                try {
+                    send(client, out, response);
+                } finally {
+                    response.close();
+                }
 
-            } catch (IOException ex) {
-                Logger.getLogger(ServerManager.class.getName()).log(Level.SEVERE, "Could not connect to client", ex);
+                log(client.getRemoteSocketAddress(), request, response, delta);
+
+                if (!keepalive) {
+                    break;
+                }
             }
 
+        } catch (IOException ex) {
+            Logger.getLogger(ServerManager.class.getName()).log(Level.SEVERE, "Could not connect to client", ex);
         }
-
     }
 
-    private HTTPResponse handleRequest(InputStream in) throws IOException {
+    /**
+     * Writes a response with a gathering write on the socket's channel, or
+     * through its stream if it was not opened from a channel. Neither holds a
+     * monitor while writing, so virtual threads are not pinned.
+     */
+    private static void send(Socket client, OutputStream out, HTTPResponse response) throws IOException {
+        SocketChannel channel = client.getChannel();
 
-        HTTPRequest request;
+        if (channel != null) {
+            response.write(channel);
+        } else {
+            response.write(out);
+        }
+    }
 
-        try {
-            request = parseRequest(in);
-        } catch (InvalidHTTPException ex) {
-            return new HTTPResponse(ex.status, ex.getMessage());
+    /**
+     * HTTP/1.1 connections are persistent unless the client asks for
+     * {@code Connection: close}, HTTP/1.0 connections only when the client
+     * asks for {@code Connection: keep-alive}.
+     */
+    static boolean isKeepAlive(HTTPRequest request) {
+        String connection = request.getHeader("Connection");
+
+        if (connection != null) {
+            for (String token : connection.split(",")) {
+                if (token.trim().equalsIgnoreCase("close")) {
+                    return false;
+                } else if (token.trim().equalsIgnoreCase("keep-alive")) {
+                    return true;
+                }
+            }
         }
 
-        return handleRequest(request);
+        return "HTTP/1.1".equals(request.getVersion());
     }
 
-    private HTTPResponse handleRequest(HTTPRequest request) {
-        LuaEndpoint endpoint = endpoints.getOrDefault(request.getResource(), null);
-
-        if (endpoint != null) {
-            try {
-                return endpoint.HandleRequest(request);
-            } catch (EndpointRedirectException redirect) {
-                return handleRequest(redirect.redirect);
-            }
+    void setConnectionHeaders(HTTPResponse response, boolean keepalive, int served) {
+        if (keepalive) {
+            response.setHeader("Connection", "keep-alive");
+            response.setHeader("Keep-Alive", "timeout=" + keepalive_timeout + ", max=" + (keepalive_max - served));
         } else {
-            return new HTTPResponse(HTTPStatusCode.NOT_FOUND, "Could not find resource " + request.getRequest());
+            response.setHeader("Connection", "close");
         }
     }
 
-    private static HTTPRequest parseRequest(InputStream input) throws IOException, InvalidHTTPException {
+    /**
+     * Turns away a connection which could not be queued. This runs on the
+     * accept thread, so it must not read from the client.
+     */
+    private void reject(Socket connection) {
+        try (
+                Socket client = connection;
+                OutputStream out = client.getOutputStream();) {
 
-        BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+            HTTPResponse response = new HTTPResponse(HTTPStatusCode.SERVICE_UNAVAILABLE, "Server is busy");
+            response.setHeader("Connection", "close");
 
-        String line = reader.readLine();
-        
-        if(line == null) {
-            throw new InvalidHTTPException(HTTPStatusCode.BAD_REQUEST, "Invalid HTTP Request Line");
-        }
-        
-        Matcher version_line = HTTP_REQUEST_PATTERN.matcher(line);
+            send(client, out, response);
 
-        if (!version_line.matches()) {
-            throw new InvalidHTTPException(HTTPStatusCode.BAD_REQUEST, "Invalid HTTP Request Line");
+        } catch (IOException ex) {
+            Logger.getLogger(ServerManager.class.getName()).log(Level.WARNING, "Could not reject client", ex);
         }
 
-        HashMap<String, String> headers = new HashMap<>();
-        StringBuilder content = new StringBuilder();
+        Logger.getLogger(ServerManager.class.getName()).log(Level.WARNING,
+                "Rejected connection from {0}, worker queue is full", connection.getRemoteSocketAddress());
+    }
 
-        while ((line = reader.readLine()) != null) {
+    HTTPResponse handleRequest(HTTPRequest request) {
+        HTTPResponse response = route(request);
 
-            if (line.trim().isEmpty()) {
-                break;
-            }
+        return compressor == null ? response : compressor.compress(request, response);
+    }
 
-            int index = line.indexOf(':');
+    private HTTPResponse route(HTTPRequest request) {
+        Router.Match match = router.get().match(request.getResource());
 
-            // no colon, but line is not CRLF, invalid line
-            if (index == -1) {
-                throw new InvalidHTTPException(HTTPStatusCode.BAD_REQUEST, "Invalid header line '" + line + "', must contain colon");
-            }
+        // unknown paths share one name, so clients can not add names without limit
+        String name = match == null ? "(unmatched)" : match.getEndpoint().getResourceName();
 
-            headers.put(line.substring(0, index).trim(), line.substring(index + 1).trim());
+        long pre = System.nanoTime();
+        HTTPStatusCode status = null;
 
-        }
+        try {
+            HTTPResponse response;
 
-        if (headers.containsKey("Content-Length")) {
-            int length = Integer.parseInt(headers.get("Content-Length"));
+            if (match != null) {
+                request.setPathValues(match.getValues());
 
-            for (int codepoint = 0; codepoint != -1 && length >= 0; codepoint = input.read()) {
-                content.appendCodePoint(codepoint);
-                length--;
+                response = match.getEndpoint().HandleRequest(request);
+            } else {
+                response = new HTTPResponse(HTTPStatusCode.NOT_FOUND, "Could not find resource " + request.getRequest());
             }
-        }
 
-        return new HTTPRequest(version_line.group("method"),
-                version_line.group("request"),
-                version_line.group("version"),
-                headers, content.toString());
+            status = response.getStatus();
+            return response;
+        } finally {
+            metrics.record(name, status, System.nanoTime() - pre);
+        }
     }
 
-    private static class InvalidHTTPException extends Exception {
+    static class InvalidHTTPException extends Exception {
 
         private HTTPStatusCode status;
 
@@ -215,14 +644,4 @@ public class ServerManager implements AutoCloseable, Runnable {
 
     }
 
-    public static class EndpointRedirectException extends Error {
-
-        public final HTTPRequest redirect;
-
-        public EndpointRedirectException(HTTPRequest to) {
-            super("This exception should have been caught");
-            redirect = to;
-        }
-    }
-
 }
@@ -0,0 +1,123 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package luaserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import luaserver.HTTPHelpers.HTTPRequest;
+import luaserver.HTTPHelpers.HTTPStatusCode;
+import luaserver.ServerManager.InvalidHTTPException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Requests split across reads, pipelined requests and the limits which turn
+ * a request away before it is read into memory.
+ *
+ * @author azalac
+ */
+public class HTTPParserTest {
+
+    private static ByteBuffer bytes(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static char[] filled(int length) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, 'a');
+        return chars;
+    }
+
+    private static void assertRejected(HTTPParser parser, String request, HTTPStatusCode status) {
+        try {
+            parser.parse(bytes(request));
+            fail("Expected " + status);
+        } catch (InvalidHTTPException ex) {
+            assertEquals(status, ex.getStatus());
+        }
+    }
+
+    @Test
+    public void parsesRequestWithContent() throws InvalidHTTPException {
+        HTTPRequest request = new HTTPParser().parse(bytes("POST /session?operation=login HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "content-type:  application/json \r\n"
+                + "Content-Length: 2\r\n"
+                + "\r\n"
+                + "{}"));
+
+        assertEquals("POST", request.getMethod());
+        assertEquals("/session", request.getResource());
+        assertEquals("login", request.getQueryValue("operation"));
+        assertEquals("HTTP/1.1", request.getVersion());
+        assertEquals("application/json", request.getHeader("Content-Type"));
+        assertArrayEquals("{}".getBytes(StandardCharsets.UTF_8), request.getContentBytes());
+    }
+
+    @Test
+    public void keepsItsPlaceBetweenReads() throws InvalidHTTPException {
+        HTTPParser parser = new HTTPParser();
+        String text = "GET /user HTTP/1.1\r\nHost: localhost\r\n\r\n";
+
+        for (int i = 0; i < text.length() - 1; i++) {
+            assertNull(parser.parse(bytes(text.substring(i, i + 1))));
+        }
+
+        assertEquals("/user", parser.parse(bytes(text.substring(text.length() - 1))).getResource());
+        assertEquals(true, parser.isIdle());
+    }
+
+    @Test
+    public void leavesPipelinedRequestsInTheBuffer() throws InvalidHTTPException {
+        HTTPParser parser = new HTTPParser();
+        ByteBuffer input = bytes("GET /a HTTP/1.1\r\n\r\nGET /b HTTP/1.1\r\n\r\n");
+
+        assertEquals("/a", parser.parse(input).getResource());
+        assertEquals("/b", parser.parse(input).getResource());
+        assertEquals(0, input.remaining());
+    }
+
+    @Test
+    public void rejectsLongRequestLine() throws InvalidHTTPException {
+        HTTPParser parser = new HTTPParser(32, HTTPParser.DEFAULT_MAX_HEADERS, HTTPParser.DEFAULT_MAX_CONTENT);
+
+        assertRejected(parser, "GET /" + new String(filled(32)) + " HTTP/1.1\r\n\r\n", HTTPStatusCode.REQUEST_URI_TOO_LONG);
+    }
+
+    @Test
+    public void rejectsLargeHeaders() {
+        HTTPParser parser = new HTTPParser(HTTPParser.DEFAULT_MAX_LINE, 64, HTTPParser.DEFAULT_MAX_CONTENT);
+
+        assertRejected(parser, "GET / HTTP/1.1\r\nCookie: " + new String(filled(64)) + "\r\n\r\n",
+                HTTPStatusCode.REQUEST_HEADER_FIELDS_TOO_LARGE);
+    }
+
+    @Test
+    public void rejectsLargeContent() {
+        HTTPParser parser = new HTTPParser(HTTPParser.DEFAULT_MAX_LINE, HTTPParser.DEFAULT_MAX_HEADERS, 16);
+
+        assertRejected(parser, "POST / HTTP/1.1\r\nContent-Length: 17\r\n\r\n", HTTPStatusCode.PAYLOAD_TOO_LARGE);
+    }
+
+    @Test
+    public void rejectsChunkedRequests() {
+        assertRejected(new HTTPParser(), "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n",
+                HTTPStatusCode.NOT_IMPLEMENTED);
+    }
+
+    @Test
+    public void rejectsMalformedRequests() {
+        assertRejected(new HTTPParser(), "GET /\r\n\r\n", HTTPStatusCode.BAD_REQUEST);
+        assertRejected(new HTTPParser(), "GET / HTTP/1.1\r\nno colon\r\n\r\n", HTTPStatusCode.BAD_REQUEST);
+        assertRejected(new HTTPParser(), "POST / HTTP/1.1\r\nContent-Length: -1\r\n\r\n", HTTPStatusCode.BAD_REQUEST);
+    }
+
+}
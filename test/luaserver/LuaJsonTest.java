@@ -0,0 +1,131 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package luaserver;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Lua values written as JSON by {@link LuaJsonWriter} and read back by
+ * {@link LuaJsonReader}.
+ *
+ * @author azalac
+ */
+public class LuaJsonTest {
+
+    private static String write(LuaValue value) {
+        return new String(LuaJsonWriter.toJson(value), StandardCharsets.UTF_8);
+    }
+
+    private static LuaValue read(String json) {
+        return LuaJsonReader.read(json.getBytes(StandardCharsets.UTF_8), LuaJsonReader.DEFAULT_MAX_DEPTH);
+    }
+
+    private static String roundTrip(String json) {
+        return write(read(json));
+    }
+
+    private static LuaTable list(LuaValue... values) {
+        return LuaValue.listOf(values);
+    }
+
+    @Test
+    public void writesScalars() {
+        assertEquals("null", write(LuaValue.NIL));
+        assertEquals("true", write(LuaValue.TRUE));
+        assertEquals("42", write(LuaValue.valueOf(42)));
+        assertEquals("3", write(LuaValue.valueOf(3.0)));
+        assertEquals("0.25", write(LuaValue.valueOf(0.25)));
+        assertEquals("null", write(LuaValue.valueOf(Double.NaN)));
+        assertEquals("\"a\\\"b\\\\c\\n\\u0001\"", write(LuaValue.valueOf("a\"b\\c\n\u0001")));
+    }
+
+    @Test
+    public void writesSequencesAsArrays() {
+        assertEquals("[1,\"two\",false]", write(list(LuaValue.valueOf(1), LuaValue.valueOf("two"), LuaValue.FALSE)));
+
+        LuaTable sparse = new LuaTable();
+        sparse.set(1, LuaValue.valueOf("a"));
+        sparse.set(3, LuaValue.valueOf("c"));
+
+        String object = write(sparse);
+        assertTrue(object, object.startsWith("{") && object.contains("\"1\":\"a\"") && object.contains("\"3\":\"c\""));
+    }
+
+    @Test
+    public void roundTripsDocuments() {
+        LuaTable user = new LuaTable();
+        user.set("id", 7);
+        user.set("name", "Zo\u00eb \"\u2603\"");
+        user.set("score", LuaValue.valueOf(1.5));
+        user.set("active", LuaValue.TRUE);
+        user.set("roles", list(LuaValue.valueOf("user"), LuaValue.valueOf("editor")));
+
+        LuaValue copy = read(write(user));
+
+        // objects have no order, so the copy is compared field by field
+        assertEquals(7, copy.get("id").toint());
+        assertEquals("Zo\u00eb \"\u2603\"", copy.get("name").tojstring());
+        assertEquals(1.5, copy.get("score").todouble(), 0);
+        assertEquals(true, copy.get("active").toboolean());
+        assertEquals("[\"user\",\"editor\"]", write(copy.get("roles")));
+
+        assertEquals("[1,[2,[3]],{\"a\":\"b\"}]", roundTrip("[1, [2, [3]], {\"a\": \"b\"}]"));
+        assertEquals("\"\\u2028\"", roundTrip("\"\\u2028\""));
+    }
+
+    @Test
+    public void writesEmptyTablesAsObjects() {
+        assertEquals("[{},{}]", roundTrip("[[], {}]"));
+    }
+
+    @Test
+    public void readsNumbersAsIntegersWhenTheyFit() {
+        assertTrue(read("2147483647").isinttype());
+        assertFalse(read("2147483648").isinttype());
+        assertEquals(100, read("1e2").toint());
+        assertEquals(0.5, read("5e-1").todouble(), 0);
+    }
+
+    @Test
+    public void dropsNulls() {
+        LuaValue table = read("{\"a\":null,\"b\":1}");
+
+        assertTrue(table.get("a").isnil());
+        assertEquals("{\"b\":1}", write(table));
+    }
+
+    @Test(expected = LuaJsonReader.InvalidJsonException.class)
+    public void rejectsTrailingContent() {
+        read("{} {}");
+    }
+
+    @Test(expected = LuaJsonReader.InvalidJsonException.class)
+    public void rejectsMalformedJson() {
+        read("{\"a\":");
+    }
+
+    @Test(expected = LuaJsonReader.InvalidJsonException.class)
+    public void rejectsDeepNesting() {
+        LuaJsonReader.read("[[[[1]]]]".getBytes(StandardCharsets.UTF_8), 3);
+    }
+
+    @Test(expected = LuaError.class)
+    public void rejectsTablesWhichContainThemselves() {
+        LuaTable table = new LuaTable();
+        table.set("self", table);
+
+        write(table);
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package luaserver;
+
+import java.util.Collections;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Results kept and dropped by {@link QueryCache}: by parameters, by the
+ * tables statements write to, by age and by size.
+ *
+ * @author azalac
+ */
+public class QueryCacheTest {
+
+    private static final String USER = "SELECT ID FROM User WHERE Username = ?";
+
+    private static final String FRIENDS = "SELECT f.ID FROM Friend f JOIN `User` u ON u.ID = f.UserID WHERE u.ID = ?";
+
+    private static final String POSTS = "SELECT ID FROM Post WHERE UserID = ?";
+
+    private static final Object[] NO_PARAMETERS = new Object[0];
+
+    private static QueryCache.Result result(Object value) {
+        return new QueryCache.Result(new String[]{"ID"}, Collections.singletonList(new Object[]{value}));
+    }
+
+    private static void put(QueryCache cache, String sql, Object parameter, QueryCache.Result result) {
+        cache.put(sql, new Object[]{parameter}, result, cache.getGeneration(), 60);
+    }
+
+    @Test
+    public void keysByParameters() {
+        QueryCache cache = new QueryCache(1 << 20);
+        QueryCache.Result result = result(1);
+
+        put(cache, USER, "user1", result);
+
+        assertSame(result, cache.get(USER, new Object[]{"user1"}));
+        assertNull(cache.get(USER, new Object[]{"user2"}));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void dropsResultsReadingAWrittenTable() {
+        QueryCache cache = new QueryCache(1 << 20);
+
+        put(cache, USER, "user1", result(1));
+        put(cache, FRIENDS, 1, result(2));
+        put(cache, POSTS, 1, result(3));
+
+        cache.invalidate("UPDATE user SET LastLogin = NOW() WHERE ID = ?");
+
+        assertNull(cache.get(USER, new Object[]{"user1"}));
+        assertNull(cache.get(FRIENDS, new Object[]{1}));
+        assertNotNull(cache.get(POSTS, new Object[]{1}));
+        assertEquals(2, cache.getInvalidations());
+
+        cache.invalidate("INSERT INTO Post (UserID) VALUES (?)");
+
+        assertNull(cache.get(POSTS, new Object[]{1}));
+        assertEquals(0, cache.getEntries());
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void dropsEverythingWhenNoTableIsFound() {
+        QueryCache cache = new QueryCache(1 << 20);
+
+        put(cache, USER, "user1", result(1));
+        put(cache, POSTS, 1, result(3));
+
+        cache.invalidate("CALL cleanup()");
+
+        assertEquals(0, cache.getEntries());
+    }
+
+    @Test
+    public void ignoresResultsReadBeforeAWrite() {
+        QueryCache cache = new QueryCache(1 << 20);
+
+        long generation = cache.getGeneration();
+
+        // the write lands while the query is running
+        cache.invalidate("DELETE FROM Post WHERE ID = ?");
+
+        cache.put(USER, new Object[]{"user1"}, result(1), generation, 60);
+
+        assertNull(cache.get(USER, new Object[]{"user1"}));
+    }
+
+    @Test
+    public void expiresResults() throws InterruptedException {
+        QueryCache cache = new QueryCache(1 << 20);
+
+        cache.put(USER, NO_PARAMETERS, result(1), cache.getGeneration(), 0.01);
+        Thread.sleep(20);
+
+        assertNull(cache.get(USER, NO_PARAMETERS));
+        assertEquals(0, cache.getEntries());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedFirst() {
+        QueryCache cache = new QueryCache(2048);
+
+        String padding = new String(new char[200]);
+
+        put(cache, USER, 1, result(padding));
+        put(cache, USER, 2, result(padding));
+        cache.get(USER, new Object[]{1});
+        put(cache, USER, 3, result(padding));
+
+        assertNotNull(cache.get(USER, new Object[]{1}));
+        assertNull(cache.get(USER, new Object[]{2}));
+        assertNotNull(cache.get(USER, new Object[]{3}));
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void cachesNothingWithoutCapacity() {
+        QueryCache cache = new QueryCache(0);
+
+        put(cache, USER, "user1", result(1));
+
+        assertEquals(false, cache.isEnabled());
+        assertNull(cache.get(USER, new Object[]{"user1"}));
+    }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package luaserver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import luaserver.HTTPHelpers.HTTPRequest;
+import luaserver.HTTPHelpers.HTTPResponse;
+import luaserver.HTTPHelpers.HTTPStatusCode;
+import luaserver.LuaEndpoint.ResourceEndpoint;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.luaj.vm2.LuaTable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Files served by resource endpoints: revalidation with {@code ETag} and
+ * {@code Last-Modified}, compressed copies and ranges.
+ *
+ * @author azalac
+ */
+public class ResourceEndpointTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final ResponseCompressor COMPRESSOR = new ResponseCompressor(ResponseCompressor.DEFAULT_MIN_SIZE,
+            ResponseCompressor.DEFAULT_LEVEL);
+
+    private static ResourceEndpoint endpoint(Path file, String mimetype, ResponseCompressor compressor) {
+        LuaTable table = new LuaTable();
+        table.set("name", "/file");
+        table.set("path", file.toString());
+        table.set("mimetype", mimetype);
+        return new ResourceEndpoint(table, compressor);
+    }
+
+    private static ResourceEndpoint endpoint(Path file, String mimetype) {
+        return endpoint(file, mimetype, COMPRESSOR);
+    }
+
+    private static HTTPRequest get(String... headers) {
+        Map<String, String> map = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+        for (int i = 0; i < headers.length; i += 2) {
+            map.put(headers[i], headers[i + 1]);
+        }
+
+        return new HTTPRequest("GET", "/file", "HTTP/1.1", map, new byte[0]);
+    }
+
+    private Path write(String name, int length) throws IOException {
+        byte[] content = new byte[length];
+        Arrays.fill(content, (byte) 'a');
+        return Files.write(folder.getRoot().toPath().resolve(name), content);
+    }
+
+    @Test
+    public void revalidatesWithETagAndLastModified() throws IOException {
+        Path file = write("site.css", 100);
+        ResourceEndpoint endpoint = endpoint(file, "text/css");
+
+        HTTPResponse response = endpoint.HandleRequest(get());
+        String etag = response.getHeader("ETag"), modified = response.getHeader("Last-Modified");
+
+        assertEquals(HTTPStatusCode.OK, response.getStatus());
+        assertEquals(100, response.getContent().length);
+
+        assertEquals(HTTPStatusCode.NOT_MODIFIED, endpoint.HandleRequest(get("If-None-Match", etag)).getStatus());
+        assertEquals(HTTPStatusCode.NOT_MODIFIED, endpoint.HandleRequest(get("If-Modified-Since", modified)).getStatus());
+
+        // If-None-Match wins when both are sent
+        assertEquals(HTTPStatusCode.OK, endpoint.HandleRequest(get("If-None-Match", "\"other\"",
+                "If-Modified-Since", modified)).getStatus());
+    }
+
+    @Test
+    public void noticesChangedFiles() throws IOException {
+        Path file = write("site.css", 100);
+        ResourceEndpoint endpoint = endpoint(file, "text/css");
+
+        String etag = endpoint.HandleRequest(get()).getHeader("ETag");
+
+        write("site.css", 200);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 2000));
+
+        HTTPResponse response = endpoint.HandleRequest(get("If-None-Match", etag));
+
+        assertEquals(HTTPStatusCode.OK, response.getStatus());
+        assertEquals(200, response.getContent().length);
+        assertNotEquals(etag, response.getHeader("ETag"));
+    }
+
+    @Test
+    public void sendsACompressedCopyToClientsWhichAcceptIt() throws IOException {
+        ResourceEndpoint endpoint = endpoint(write("site.css", 4096), "text/css");
+
+        HTTPResponse plain = endpoint.HandleRequest(get());
+        HTTPResponse gzip = endpoint.HandleRequest(get("Accept-Encoding", "gzip"));
+
+        assertNull(plain.getHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", plain.getHeader("Vary"));
+
+        assertEquals("gzip", gzip.getHeader("Content-Encoding"));
+        assertTrue(gzip.getContent().length < 4096);
+        assertNotEquals(plain.getHeader("ETag"), gzip.getHeader("ETag"));
+
+        assertSame(gzip.getContent(), endpoint.HandleRequest(get("Accept-Encoding", "gzip")).getContent());
+
+        assertEquals(HTTPStatusCode.NOT_MODIFIED, endpoint.HandleRequest(get("Accept-Encoding", "gzip",
+                "If-None-Match", gzip.getHeader("ETag"))).getStatus());
+    }
+
+    @Test
+    public void followsTheServersCompressionSettings() throws IOException {
+        Path file = write("site.css", 4096);
+
+        HTTPResponse off = endpoint(file, "text/css", null).HandleRequest(get("Accept-Encoding", "gzip"));
+
+        assertNull(off.getHeader("Content-Encoding"));
+        assertNull(off.getHeader("Vary"));
+        assertEquals(4096, off.getContent().length);
+
+        HTTPResponse small = endpoint(file, "text/css", new ResponseCompressor(8192, 6))
+                .HandleRequest(get("Accept-Encoding", "gzip"));
+
+        assertNull(small.getHeader("Content-Encoding"));
+
+        HTTPResponse fast = endpoint(file, "text/css", new ResponseCompressor(16, 1))
+                .HandleRequest(get("Accept-Encoding", "gzip"));
+
+        assertEquals("gzip", fast.getHeader("Content-Encoding"));
+        assertTrue(Arrays.equals(ResponseCompressor.compress(Files.readAllBytes(file), "gzip", 1), fast.getContent()));
+    }
+
+    @Test
+    public void streamsLargeFilesUncompressed() throws IOException {
+        ResourceEndpoint endpoint = endpoint(write("large.js", 512 * 1024), "application/javascript");
+
+        HTTPRequest request = get("Accept-Encoding", "gzip");
+        HTTPResponse response = endpoint.HandleRequest(request);
+
+        try {
+            assertTrue(response.isStreamed());
+
+            // the server's compressor keeps the file's zero-copy path
+            HTTPResponse.Body body = response.getBody();
+            new ResponseCompressor(16, 6).compress(request, response);
+
+            assertSame(body, response.getBody());
+            assertNull(response.getHeader("Content-Encoding"));
+            assertEquals(Integer.toString(512 * 1024), response.getHeader("Content-Length"));
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void servesRanges() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("data.txt");
+        Files.write(file, "0123456789".getBytes(StandardCharsets.US_ASCII));
+
+        ResourceEndpoint endpoint = endpoint(file, "text/plain");
+
+        HTTPResponse partial = endpoint.HandleRequest(get("Range", "bytes=2-4"));
+
+        assertEquals(HTTPStatusCode.PARTIAL_CONTENT, partial.getStatus());
+        assertEquals("234", new String(partial.getContent(), StandardCharsets.US_ASCII));
+        assertEquals("bytes 2-4/10", partial.getHeader("Content-Range"));
+
+        assertEquals(HTTPStatusCode.REQUESTED_RANGE_NOT_SATISFIABLE,
+                endpoint.HandleRequest(get("Range", "bytes=20-30")).getStatus());
+    }
+
+    @Test
+    public void answersMissingFilesWith404() {
+        ResourceEndpoint endpoint = endpoint(folder.getRoot().toPath().resolve("missing.css"), "text/css");
+
+        assertEquals(HTTPStatusCode.NOT_FOUND, endpoint.HandleRequest(get()).getStatus());
+    }
+
+}
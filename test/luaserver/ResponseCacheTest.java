@@ -0,0 +1,195 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package luaserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import luaserver.HTTPHelpers.HTTPRequest;
+import luaserver.HTTPHelpers.HTTPResponse;
+import luaserver.HTTPHelpers.HTTPStatusCode;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Script responses answered from {@link ResponseCache}, revalidated with
+ * {@code If-None-Match} and kept compressed.
+ *
+ * @author azalac
+ */
+public class ResponseCacheTest {
+
+    private static final ResponseCache.Policy POLICY = new ResponseCache.Policy(60, new String[]{"operation"},
+            new String[]{"Authorization"});
+
+    /**
+     * Answers with a JSON list of the times it was called, padded so it is
+     * worth compressing.
+     */
+    private static class Counting implements LuaEndpoint {
+
+        private int calls;
+
+        private HTTPStatusCode status = HTTPStatusCode.OK;
+
+        @Override
+        public String getResourceName() {
+            return "/user/{id}";
+        }
+
+        @Override
+        public HTTPResponse HandleRequest(HTTPRequest request) {
+            calls++;
+
+            char[] padding = new char[2048];
+            Arrays.fill(padding, ' ');
+
+            HTTPResponse response = new HTTPResponse(status, "[" + calls + "]" + new String(padding));
+            response.setHeader("Content-Type", "application/json");
+            return response;
+        }
+
+    }
+
+    private static HTTPRequest request(String method, String target, String... headers) {
+        Map<String, String> map = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+        for (int i = 0; i < headers.length; i += 2) {
+            map.put(headers[i], headers[i + 1]);
+        }
+
+        return new HTTPRequest(method, target, "HTTP/1.1", map, new byte[0]);
+    }
+
+    private static HTTPRequest get(String target, String... headers) {
+        return request("GET", target, headers);
+    }
+
+    private static String body(HTTPResponse response) {
+        return new String(response.getContent(), StandardCharsets.UTF_8).trim();
+    }
+
+    @Test
+    public void answersRepeatedRequestsFromTheCache() {
+        ResponseCache cache = new ResponseCache(1 << 20, null);
+        Counting endpoint = new Counting();
+        LuaEndpoint cached = cache.wrap(endpoint, POLICY);
+
+        assertEquals("[1]", body(cached.HandleRequest(get("/user/1?operation=get"))));
+        assertEquals("[1]", body(cached.HandleRequest(get("/user/1?operation=get&ignored=x"))));
+
+        assertEquals(1, endpoint.calls);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void keysByPathQueryAndHeaders() {
+        Counting endpoint = new Counting();
+        LuaEndpoint cached = new ResponseCache(1 << 20, null).wrap(endpoint, POLICY);
+
+        cached.HandleRequest(get("/user/1?operation=get"));
+        cached.HandleRequest(get("/user/2?operation=get"));
+        cached.HandleRequest(get("/user/1?operation=friends"));
+        cached.HandleRequest(get("/user/1?operation=get", "Authorization", "token"));
+
+        assertEquals(4, endpoint.calls);
+        assertEquals("Authorization", cached.HandleRequest(get("/user/1?operation=get")).getHeader("Vary"));
+    }
+
+    @Test
+    public void onlyKeepsSuccessfulGets() {
+        Counting endpoint = new Counting();
+        LuaEndpoint cached = new ResponseCache(1 << 20, null).wrap(endpoint, POLICY);
+
+        cached.HandleRequest(request("POST", "/user/1"));
+        cached.HandleRequest(request("POST", "/user/1"));
+
+        endpoint.status = HTTPStatusCode.NOT_FOUND;
+
+        cached.HandleRequest(get("/user/1"));
+        HTTPResponse missing = cached.HandleRequest(get("/user/1"));
+
+        assertEquals(4, endpoint.calls);
+        assertNull(missing.getHeader("ETag"));
+    }
+
+    @Test
+    public void expiresResponses() throws InterruptedException {
+        Counting endpoint = new Counting();
+        LuaEndpoint cached = new ResponseCache(1 << 20, null).wrap(endpoint,
+                new ResponseCache.Policy(0.01, new String[0], new String[0]));
+
+        cached.HandleRequest(get("/user/1"));
+        Thread.sleep(20);
+
+        assertEquals("[2]", body(cached.HandleRequest(get("/user/1"))));
+    }
+
+    @Test
+    public void revalidatesWithIfNoneMatch() {
+        ResponseCache cache = new ResponseCache(1 << 20, null);
+        LuaEndpoint cached = cache.wrap(new Counting(), POLICY);
+
+        String etag = cached.HandleRequest(get("/user/1")).getHeader("ETag");
+        assertNotNull(etag);
+
+        HTTPResponse strong = cached.HandleRequest(get("/user/1", "If-None-Match", etag));
+        HTTPResponse weak = cached.HandleRequest(get("/user/1", "If-None-Match", "\"other\", W/" + etag));
+        HTTPResponse any = cached.HandleRequest(get("/user/1", "If-None-Match", "*"));
+
+        assertEquals(HTTPStatusCode.NOT_MODIFIED, strong.getStatus());
+        assertEquals(etag, strong.getHeader("ETag"));
+        assertEquals(0, strong.getContent().length);
+        assertNull(strong.getHeader("Content-Length"));
+
+        assertEquals(HTTPStatusCode.NOT_MODIFIED, weak.getStatus());
+        assertEquals(HTTPStatusCode.NOT_MODIFIED, any.getStatus());
+        assertEquals(3, cache.getNotModified());
+
+        assertEquals(HTTPStatusCode.OK, cached.HandleRequest(get("/user/1", "If-None-Match", "\"other\"")).getStatus());
+    }
+
+    @Test
+    public void keepsACompressedCopyForEveryEncoding() {
+        Counting endpoint = new Counting();
+        LuaEndpoint cached = new ResponseCache(1 << 20, new ResponseCompressor(16, 6)).wrap(endpoint, POLICY);
+
+        HTTPResponse gzip = cached.HandleRequest(get("/user/1", "Accept-Encoding", "gzip"));
+        HTTPResponse again = cached.HandleRequest(get("/user/1", "Accept-Encoding", "gzip, deflate"));
+        HTTPResponse deflate = cached.HandleRequest(get("/user/1", "Accept-Encoding", "deflate"));
+        HTTPResponse identity = cached.HandleRequest(get("/user/1"));
+
+        assertEquals(1, endpoint.calls);
+
+        assertEquals("gzip", gzip.getHeader("Content-Encoding"));
+        assertSame(gzip.getContent(), again.getContent());
+        assertEquals("deflate", deflate.getHeader("Content-Encoding"));
+        assertNull(identity.getHeader("Content-Encoding"));
+        assertEquals("[1]", body(identity));
+
+        assertEquals("Accept-Encoding, Authorization", gzip.getHeader("Vary"));
+        assertEquals("W/" + identity.getHeader("ETag"), gzip.getHeader("ETag"));
+        assertNotEquals(gzip.getContent().length, identity.getContent().length);
+
+        // the server's compressor leaves what the cache encoded alone
+        assertSame(gzip.getContent(), new ResponseCompressor(16, 6)
+                .compress(get("/user/1", "Accept-Encoding", "gzip"), gzip).getContent());
+
+        HTTPResponse revalidated = cached.HandleRequest(get("/user/1", "Accept-Encoding", "gzip",
+                "If-None-Match", gzip.getHeader("ETag")));
+
+        assertEquals(HTTPStatusCode.NOT_MODIFIED, revalidated.getStatus());
+        assertEquals(gzip.getHeader("ETag"), revalidated.getHeader("ETag"));
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package luaserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import luaserver.HTTPHelpers.HTTPRequest;
+import luaserver.HTTPHelpers.HTTPResponse;
+import luaserver.HTTPHelpers.HTTPStatusCode;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Which responses {@link ResponseCompressor} compresses, and how they are
+ * sent.
+ *
+ * @author azalac
+ */
+public class ResponseCompressorTest {
+
+    private static final ResponseCompressor COMPRESSOR = new ResponseCompressor(1024, 6);
+
+    private static HTTPRequest get(String version, String... headers) {
+        Map<String, String> map = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+        for (int i = 0; i < headers.length; i += 2) {
+            map.put(headers[i], headers[i + 1]);
+        }
+
+        return new HTTPRequest("GET", "/", version, map, new byte[0]);
+    }
+
+    private static HTTPResponse json(int length) {
+        byte[] content = new byte[length];
+        Arrays.fill(content, (byte) ' ');
+
+        HTTPResponse response = new HTTPResponse(HTTPStatusCode.OK, content);
+        response.setHeader("Content-Type", "application/json");
+        return response;
+    }
+
+    private static byte[] written(HTTPResponse response) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try {
+            response.getBody().writeTo(out);
+        } finally {
+            response.close();
+        }
+
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+
+        for (int read; (read = in.read(buffer)) > 0; ) {
+            out.write(buffer, 0, read);
+        }
+
+        return out.toByteArray();
+    }
+
+    @Test
+    public void compressesContentWhileItIsWritten() throws IOException {
+        HTTPResponse original = json(4096);
+        byte[] content = original.getContent();
+
+        HTTPResponse response = COMPRESSOR.compress(get("HTTP/1.1", "Accept-Encoding", "gzip"), original);
+
+        assertTrue(response.isStreamed());
+        assertTrue(response.isChunked());
+        assertNull(response.getHeader("Content-Length"));
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", response.getHeader("Vary"));
+
+        assertArrayEquals(content, inflate(new GZIPInputStream(new ByteArrayInputStream(written(response)))));
+    }
+
+    @Test
+    public void compressesContentInMemoryForOlderClients() throws IOException {
+        HTTPResponse response = COMPRESSOR.compress(get("HTTP/1.0", "Accept-Encoding", "deflate"), json(4096));
+
+        assertFalse(response.isStreamed());
+        assertEquals(Integer.toString(response.getContent().length), response.getHeader("Content-Length"));
+        assertEquals(4096, inflate(new InflaterInputStream(new ByteArrayInputStream(response.getContent()))).length);
+    }
+
+    @Test
+    public void compressesKeptResponsesOnce() {
+        HTTPResponse response = COMPRESSOR.compressOnce(get("HTTP/1.1", "Accept-Encoding", "gzip"), json(4096));
+
+        assertFalse(response.isStreamed());
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        assertTrue(response.getContent().length < 4096);
+    }
+
+    @Test
+    public void leavesSmallAndUnacceptedContentAlone() {
+        HTTPResponse small = json(100);
+        byte[] content = small.getContent();
+
+        assertSame(content, COMPRESSOR.compress(get("HTTP/1.1", "Accept-Encoding", "gzip"), small).getContent());
+        assertNull(small.getHeader("Content-Encoding"));
+
+        HTTPResponse identity = COMPRESSOR.compress(get("HTTP/1.1", "Accept-Encoding", "gzip;q=0"), json(4096));
+
+        assertFalse(identity.isStreamed());
+        assertEquals("Accept-Encoding", identity.getHeader("Vary"));
+
+        HTTPResponse image = new HTTPResponse(HTTPStatusCode.OK, new byte[4096]);
+        image.setHeader("Content-Type", "image/png");
+
+        assertNull(COMPRESSOR.compress(get("HTTP/1.1", "Accept-Encoding", "gzip"), image).getHeader("Vary"));
+    }
+
+    @Test
+    public void prefersWhatTheClientWeighsHighest() {
+        assertEquals("gzip", ResponseCompressor.negotiate("deflate, gzip", ResponseCompressor.ENCODINGS));
+        assertEquals("deflate", ResponseCompressor.negotiate("gzip;q=0.5, deflate", ResponseCompressor.ENCODINGS));
+        assertEquals("gzip", ResponseCompressor.negotiate("*", ResponseCompressor.ENCODINGS));
+        assertNull(ResponseCompressor.negotiate("*, gzip;q=0, deflate;q=0", ResponseCompressor.ENCODINGS));
+        assertNull(ResponseCompressor.negotiate("br", ResponseCompressor.ENCODINGS));
+    }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package luaserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import luaserver.HTTPHelpers.HTTPRequest;
+import luaserver.HTTPHelpers.HTTPResponse;
+import luaserver.HTTPHelpers.HTTPStatusCode;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Which endpoint a path is routed to, and what its parameters capture.
+ *
+ * @author azalac
+ */
+public class RouterTest {
+
+    private static class Named implements LuaEndpoint {
+
+        private final String name;
+
+        private Named(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getResourceName() {
+            return name;
+        }
+
+        @Override
+        public HTTPResponse HandleRequest(HTTPRequest request) {
+            return new HTTPResponse(HTTPStatusCode.OK, name);
+        }
+
+    }
+
+    private static Router router(String... names) {
+        ArrayList<LuaEndpoint> endpoints = new ArrayList<>();
+
+        for (String name : names) {
+            endpoints.add(new Named(name));
+        }
+
+        return new Router(endpoints);
+    }
+
+    private static String route(Router router, String path) {
+        Router.Match match = router.match(path);
+        return match == null ? null : match.getEndpoint().getResourceName();
+    }
+
+    @Test
+    public void literalsWinOverParametersAndWildcards() {
+        Router router = router("/static/*", "/user/{id}", "/user/me", "/user/*");
+
+        assertEquals("/user/me", route(router, "/user/me"));
+        assertEquals("/user/{id}", route(router, "/user/42"));
+        assertEquals("/user/*", route(router, "/user/42/friends"));
+        assertEquals("/static/*", route(router, "/static/css/site.css"));
+    }
+
+    @Test
+    public void backtracksWhenALiteralLeadsNowhere() {
+        Router router = router("/user/me/settings", "/user/{id}/friends");
+
+        assertEquals("/user/{id}/friends", route(router, "/user/me/friends"));
+        assertEquals("me", router.match("/user/me/friends").getValues().get("id"));
+    }
+
+    @Test
+    public void capturesParametersAndTheRestOfThePath() {
+        Router router = router("/user/{id}/posts/{post}", "/files/*");
+
+        HashMap<String, String> expected = new HashMap<>();
+        expected.put("id", "7");
+        expected.put("post", "abc");
+
+        assertEquals(expected, router.match("/user/7/posts/abc").getValues());
+        assertEquals(Collections.singletonMap("*", "a/b.txt"), router.match("/files/a/b.txt").getValues());
+        assertEquals(Collections.emptyMap(), router("/user").match("/user").getValues());
+    }
+
+    @Test
+    public void parametersDoNotMatchEmptySegments() {
+        Router router = router("/user/{id}");
+
+        assertNull(router.match("/user/"));
+        assertNull(router.match("/user"));
+        assertNull(router.match("/user/1/2"));
+        assertNull(router.match("user/1"));
+    }
+
+    @Test
+    public void skipsConflictingParameters() {
+        Router router = router("/user/{id}", "/user/{name}/posts", "/user/{id}/friends");
+
+        assertEquals("/user/{id}", route(router, "/user/1"));
+        assertEquals("/user/{id}/friends", route(router, "/user/1/friends"));
+        assertNull(router.match("/user/1/posts"));
+    }
+
+    @Test(timeout = 2000)
+    public void backtracksOnceIntoEveryOverlap() {
+        int depth = 40;
+        ArrayList<String> names = new ArrayList<>();
+
+        // a literal and a parameter at every position, only the last route ends in /end
+        for (int i = 0; i < depth; i++) {
+            StringBuilder name = new StringBuilder();
+
+            for (int j = 0; j < depth; j++) {
+                name.append(j == i ? "/{p}" : "/a");
+            }
+
+            names.add(name.append(i == 0 ? "/end" : "/other").toString());
+        }
+
+        Router router = router(names.toArray(new String[0]));
+
+        StringBuilder path = new StringBuilder();
+
+        for (int j = 0; j < depth; j++) {
+            path.append("/a");
+        }
+
+        // exponential backtracking would take 2^40 steps for either
+        assertNull(router.match(path + "/missing"));
+        assertEquals(names.get(0), route(router, path + "/end"));
+        assertEquals("a", router.match(path + "/end").getValues().get("p"));
+    }
+
+    @Test
+    public void laterEndpointsReplaceEarlierOnes() {
+        Named first = new Named("/a"), second = new Named("/a");
+
+        Router router = new Router(Collections.singletonList(first)).with(second).with(new Named("/b"));
+
+        assertSame(second, router.match("/a").getEndpoint());
+        assertEquals("/b", route(router, "/b"));
+        assertEquals(2, router.getEndpoints().size());
+    }
+
+}